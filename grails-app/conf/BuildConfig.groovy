@@ -15,7 +15,7 @@ grails.project.dependency.resolution = {
         grailsCentral()
         // uncomment the below to enable remote dependency resolution
         // from public Maven repositories
-        //mavenCentral()
+        mavenCentral()
         //mavenLocal()
         mavenRepo "http://labs.technipelago.se/repo/plugins-releases-local/"
         //mavenRepo "http://snapshots.repository.codehaus.org"
@@ -27,6 +27,9 @@ grails.project.dependency.resolution = {
         // specify dependencies here under either 'build', 'compile', 'runtime', 'test' or 'provided' scopes eg.
 
         // runtime 'mysql:mysql-connector-java:5.1.5'
+        test("com.unboundid:unboundid-ldapsdk:2.3.1") {
+            export = false
+        }
     }
 
     plugins {
@@ -18,40 +18,214 @@
 import org.apache.directory.groovyldap.*
 import grails.plugins.selection.SelectionUtils
 
+import java.util.concurrent.ConcurrentHashMap
+
 /**
  * This selection handler provides LDAP search features.
  */
 class LdapSelection {
 
+    /**
+     * Shared by all selections, so identical searches running at the same time use one server request.
+     */
+    private static final SearchCoalescer coalescer = new SearchCoalescer()
+
+    /**
+     * Statistics of all searches made by selections, see getQueryReport() and getSlowOperations().
+     * Selection URIs decide base and filter, so the number of rows is bounded by QueryProfiler.maxShapes.
+     */
+    private static final QueryProfiler profiler = new QueryProfiler()
+
     String bindUser
     String bindPassword
 
     /**
-     * Check that the URI scheme is 'ldap'.
+     * Trust store for ldaps:// selections and StartTLS, the JVM default trust store if not set.
+     */
+    String trustStore
+    String trustStorePassword
+    String trustStoreType
+
+    /**
+     * If true, ldap:// selections are upgraded to TLS with StartTLS.
+     */
+    boolean startTls
+
+    /**
+     * If set, results are kept in this file and served from it after a restart while they are refreshed
+     * in the background. The file holds all attributes the selections returned, which may include personal
+     * data and userPassword values. It is created readable by its owner only; keep it on a local disk that
+     * is not backed up or shared with other applications.
+     */
+    String snapshotFile
+    long snapshotRefreshSeconds = 300
+    int snapshotFullRefreshEvery = 12
+
+    /**
+     * Number of selection URIs kept in the snapshot, and how long a URI is kept refreshed after its last use.
+     */
+    int snapshotMaxKeys = SnapshotCache.DEFAULT_MAX_KEYS
+    long snapshotKeyExpirySeconds = SnapshotCache.DEFAULT_KEY_EXPIRY_MILLIS.intdiv(1000)
+
+    private SnapshotCache snapshotCache
+
+    /**
+     * One LDAP object per server URL, so secure connections are kept open between selections.
+     */
+    private final Map<String, LDAP> connections = new ConcurrentHashMap<String, LDAP>()
+
+    private TlsConfiguration tls
+
+    /**
+     * Check that the URI scheme is 'ldap' or 'ldaps'.
      * @param uri the URI to check support for
-     * @return true if uri.scheme is 'ldap'
+     * @return true if uri.scheme is 'ldap' or 'ldaps'
      */
     boolean supports(URI uri) {
-        return uri?.scheme == 'ldap'
+        return uri?.scheme == 'ldap' || uri?.scheme == 'ldaps'
     }
 
     def select(URI uri, Map params) {
-        def ldapURL = uri.scheme + "://" + uri.host
-        if (uri.port > 0) {
-            ldapURL += ":" + uri.port
+        def query = SelectionUtils.queryAsMap(uri.query)
+        // coalesce=false asks for a result of its own, so it is not served from the snapshot either
+        def cache = query.max || query.coalesce == 'false' ? null : getSnapshotCache()
+        if (cache == null) {
+            return search(uri, null)
         }
-        if(uri.path) {
-            ldapURL += uri.path
+        def key = uri.toString()
+        def result = cache.get(key)
+        if (result == null) {
+            result = search(uri, null)
+            cache.put(key, result)
         }
+        result
+    }
 
-        def ldap = bindUser ? LDAP.newInstance(ldapURL, bindUser, bindPassword) : LDAP.newInstance(ldapURL)
+    /**
+     * Perform the search described by a selection URI.
+     * @param uri the selection URI
+     * @param modifiedSince if set, only entries with a modifyTimestamp at or after this GeneralizedTime are returned
+     */
+    private List search(URI uri, String modifiedSince) {
+        def ldap = getLdap(serverURL(uri))
         def query = SelectionUtils.queryAsMap(uri.query)
         def filter = query.filter ?: "(objectClass=*)"
+        if (modifiedSince) {
+            filter = "(&$filter(modifyTimestamp>=$modifiedSince))"
+        }
+
+        def max = query.max ? Integer.valueOf(query.max.toString()) : 0
 
         if(log.isDebugEnabled()) {
-            log.debug "LDAP search: $ldapURL filter=$filter"
+            log.debug "LDAP search: ${serverURL(uri)}${base(uri)} filter=$filter max=$max"
         }
 
-        ldap.search(filter, ldapURL, SearchScope.SUB)
+        def search = new Search(base: base(uri), filter: filter, scope: SearchScope.SUB)
+        if(query.coalesce == 'false') {
+            search.coalesce = false
+        }
+        if(max > 0) {
+            return ldap.searchFirst(search, max)
+        }
+        ldap.search(search)
+    }
+
+    /**
+     * List the entries a selection URI matches, without their attributes.
+     * @param uri the selection URI
+     * @return the normalized DNs of the entries
+     */
+    private Set<String> names(URI uri) {
+        def query = SelectionUtils.queryAsMap(uri.query)
+        def search = new Search(base: base(uri), filter: query.filter ?: "(objectClass=*)", scope: SearchScope.SUB)
+        search.attrs = new String[0]
+        def names = new HashSet<String>()
+        getLdap(serverURL(uri)).eachEntry(search) { names << it.getDistinguishedName().normalizedName }
+        names
+    }
+
+    private static String serverURL(URI uri) {
+        def serverURL = uri.scheme + "://" + uri.host
+        if (uri.port > 0) {
+            serverURL += ":" + uri.port
+        }
+        serverURL + "/"
+    }
+
+    /**
+     * The base is searched on the connection to the server, not through a new connection for the URL.
+     */
+    private static String base(URI uri) {
+        uri.path ? uri.path.substring(1) : ""
+    }
+
+    /**
+     * Returns the LDAP object for a server, created on first use.
+     */
+    private LDAP getLdap(String serverURL) {
+        def ldap = connections.get(serverURL)
+        if (ldap == null) {
+            ldap = bindUser ? LDAP.newInstance(serverURL, bindUser, bindPassword) : LDAP.newInstance(serverURL)
+            ldap.searchCoalescer = coalescer
+            ldap.profiler = profiler
+            ldap.tls = getTlsConfiguration()
+            def existing = connections.putIfAbsent(serverURL, ldap)
+            if (existing != null) {
+                ldap = existing
+            }
+        }
+        ldap
+    }
+
+    private synchronized TlsConfiguration getTlsConfiguration() {
+        if (tls == null && (trustStore || startTls)) {
+            tls = new TlsConfiguration(trustStore: trustStore, trustStorePassword: trustStorePassword, startTls: startTls)
+            if (trustStoreType) {
+                tls.trustStoreType = trustStoreType
+            }
+        }
+        tls
+    }
+
+    /**
+     * Statistics per filter shape, base and scope, the most expensive first.
+     * @return list of maps with filter, base, scope, count, totalMillis, p50Millis, p99Millis, maxMillis, entries and bytes
+     */
+    List<Map<String, Object>> getQueryReport() {
+        profiler.report
+    }
+
+    /**
+     * Searches that took longer than slowQueryMillis, newest first.
+     */
+    List<Map<String, Object>> getSlowOperations() {
+        profiler.slowOperations
+    }
+
+    /**
+     * Clears the query report and the slow operation log.
+     */
+    void resetStatistics() {
+        profiler.reset()
+    }
+
+    long getSlowQueryMillis() {
+        profiler.slowThresholdMillis
+    }
+
+    void setSlowQueryMillis(long millis) {
+        profiler.slowThresholdMillis = millis
+    }
+
+    private synchronized SnapshotCache getSnapshotCache() {
+        if (snapshotFile && snapshotCache == null) {
+            snapshotCache = new SnapshotCache(new File(snapshotFile), [
+                    load: { String key, String since -> search(new URI(key), since) },
+                    names: { String key -> names(new URI(key)) }] as SnapshotCache.Loader)
+            snapshotCache.maxKeys = snapshotMaxKeys
+            snapshotCache.keyExpiryMillis = snapshotKeyExpirySeconds * 1000
+            snapshotCache.start(snapshotRefreshSeconds * 1000, snapshotFullRefreshEvery)
+        }
+        snapshotCache
     }
 }
\ No newline at end of file
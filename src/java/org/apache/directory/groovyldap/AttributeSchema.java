@@ -0,0 +1,464 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.ldap.LdapContext;
+
+
+/**
+ * Attribute types of a directory, read from its subschema entry. Used to convert attribute values to Java
+ * types by syntax, and to know which attributes compare their values ignoring case.
+ * <p>
+ * Values are converted as follows: INTEGER and Active Directory Large Integer to Long (BigInteger if too
+ * large), GeneralizedTime to Date, Boolean to Boolean. Octet String attributes are requested from the
+ * server as binary, so they are returned as byte[]. Other values are left as they are.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class AttributeSchema
+{
+    /**
+     * Environment property that passes the schema to the object factory.
+     */
+    public static final String ENVIRONMENT_KEY = "org.apache.directory.groovyldap.schema";
+
+    private static final String SYNTAX_BOOLEAN = "1.3.6.1.4.1.1466.115.121.1.7";
+
+    private static final String SYNTAX_GENERALIZED_TIME = "1.3.6.1.4.1.1466.115.121.1.24";
+
+    private static final String SYNTAX_INTEGER = "1.3.6.1.4.1.1466.115.121.1.27";
+
+    private static final String SYNTAX_OCTET_STRING = "1.3.6.1.4.1.1466.115.121.1.40";
+
+    private static final String SYNTAX_AD_LARGE_INTEGER = "1.2.840.113556.1.4.906";
+
+    private static final Pattern SERVER = Pattern.compile( "^\\w+://[^/]*/" );
+
+    private static final Pattern OID = Pattern.compile( "^\\(\\s*([\\w.-]+)" );
+
+    private static final Pattern NAMES = Pattern.compile( "\\sNAME\\s+(?:'([^']*)'|\\(([^)]*)\\))" );
+
+    private static final Pattern SUP = Pattern.compile( "\\sSUP\\s+([\\w.-]+)" );
+
+    private static final Pattern EQUALITY = Pattern.compile( "\\sEQUALITY\\s+([\\w.-]+)" );
+
+    private static final Pattern SYNTAX = Pattern.compile( "\\sSYNTAX\\s+'?([\\d.]+)" );
+
+    private static final Pattern GENERALIZED_TIME = Pattern
+        .compile( "(\\d{4})(\\d{2})(\\d{2})(\\d{2})(\\d{2})?(\\d{2})?(?:[.,](\\d+))?(Z|[+-]\\d{2}(?:\\d{2})?)?" );
+
+    /**
+     * A schema without attribute types, used when the schema of a directory can not be read. It converts
+     * no values.
+     */
+    static final AttributeSchema NONE = new AttributeSchema( Collections.<String> emptyList() );
+
+    private static final ConcurrentHashMap<String, AttributeSchema> SCHEMAS = new ConcurrentHashMap<String, AttributeSchema>();
+
+    private enum Type
+    {
+        INTEGER, TIME, BOOLEAN, BINARY, OTHER
+    }
+
+    /** Lower case attribute names (and OIDs) to type. */
+    private final Map<String, Type> types;
+
+    /** Lower case attribute names (and OIDs) whose equality rule ignores case. */
+    private final Map<String, Boolean> caseIgnore;
+
+    private final String binaryAttributes;
+
+
+    AttributeSchema( List<String> definitions )
+    {
+        Map<String, String[]> defs = new HashMap<String, String[]>();
+        List<String[]> all = new ArrayList<String[]>();
+        for ( String definition : definitions )
+        {
+            // oid, sup, equality, syntax, followed by the names
+            List<String> parsed = new ArrayList<String>();
+            parsed.add( group( OID, definition ) );
+            parsed.add( group( SUP, definition ) );
+            parsed.add( group( EQUALITY, definition ) );
+            parsed.add( group( SYNTAX, definition ) );
+            Matcher m = NAMES.matcher( definition );
+            if ( m.find() )
+            {
+                String names = m.group( 1 ) != null ? m.group( 1 ) : m.group( 2 );
+                for ( String name : names.split( "[\\s']+" ) )
+                {
+                    if ( name.length() > 0 )
+                    {
+                        parsed.add( name );
+                    }
+                }
+            }
+            String[] def = parsed.toArray( new String[parsed.size()] );
+            all.add( def );
+            for ( int i = 4; i < def.length; i++ )
+            {
+                defs.put( def[i].toLowerCase( Locale.ENGLISH ), def );
+            }
+            if ( def[0] != null )
+            {
+                defs.put( def[0], def );
+            }
+        }
+
+        Map<String, Type> t = new HashMap<String, Type>();
+        Map<String, Boolean> ci = new HashMap<String, Boolean>();
+        StringBuilder binary = new StringBuilder();
+        for ( String[] def : all )
+        {
+            String syntax = inherited( defs, def, 3 );
+            String equality = inherited( defs, def, 2 );
+            Type type = type( syntax );
+            boolean ignoreCase = equality != null && equality.toLowerCase( Locale.ENGLISH ).startsWith( "caseignore" );
+            for ( int i = 4; i < def.length; i++ )
+            {
+                String name = def[i].toLowerCase( Locale.ENGLISH );
+                t.put( name, type );
+                ci.put( name, ignoreCase );
+                if ( type == Type.BINARY )
+                {
+                    binary.append( def[i] ).append( ' ' );
+                }
+            }
+        }
+        this.types = Collections.unmodifiableMap( t );
+        this.caseIgnore = Collections.unmodifiableMap( ci );
+        this.binaryAttributes = binary.toString().trim();
+    }
+
+
+    /**
+     * Returns the schema of the directory an LDAP object connects to. The schema is read once per URL.
+     */
+    static AttributeSchema forDirectory( LDAP ldap, String url ) throws NamingException
+    {
+        AttributeSchema schema = SCHEMAS.get( url );
+        if ( schema == null )
+        {
+            schema = read( ldap, url );
+            SCHEMAS.putIfAbsent( url, schema );
+        }
+        return schema;
+    }
+
+
+    private static AttributeSchema read( LDAP ldap, String url ) throws NamingException
+    {
+        Properties env = ldap.createEnvironment();
+        LdapContext ctx = ldap.openContext( env );
+        try
+        {
+            // subschemaSubentry is present on every entry, the base entry of the URL will do
+            Attributes base = ctx.getAttributes( "", new String[]
+                { "subschemaSubentry" } );
+            Attribute subentry = base.get( "subschemaSubentry" );
+            if ( subentry == null )
+            {
+                throw new NamingException( "The directory does not publish its schema" );
+            }
+
+            // The subschema DN is absolute, read it relative to the root of the server
+            Matcher m = SERVER.matcher( url );
+            env = ldap.createEnvironment();
+            env.setProperty( Context.PROVIDER_URL, m.find() ? m.group() : url );
+            LdapContext root = ldap.openContext( env );
+            Attributes schema;
+            try
+            {
+                schema = root.getAttributes( subentry.get().toString(), new String[]
+                    { "attributeTypes" } );
+            }
+            finally
+            {
+                root.close();
+            }
+
+            List<String> definitions = new ArrayList<String>();
+            Attribute attributeTypes = schema.get( "attributeTypes" );
+            if ( attributeTypes != null )
+            {
+                NamingEnumeration<?> e = attributeTypes.getAll();
+                while ( e.hasMore() )
+                {
+                    definitions.add( e.next().toString() );
+                }
+            }
+            return new AttributeSchema( definitions );
+        }
+        finally
+        {
+            ctx.close();
+        }
+    }
+
+
+    private static String group( Pattern pattern, String definition )
+    {
+        Matcher m = pattern.matcher( definition );
+        return m.find() ? m.group( 1 ) : null;
+    }
+
+
+    private static String inherited( Map<String, String[]> defs, String[] def, int field )
+    {
+        String[] d = def;
+        for ( int depth = 0; d != null && depth < 10; depth++ )
+        {
+            if ( d[field] != null )
+            {
+                return d[field];
+            }
+            d = d[1] == null ? null : defs.get( d[1].toLowerCase( Locale.ENGLISH ) );
+        }
+        return null;
+    }
+
+
+    private static Type type( String syntax )
+    {
+        if ( SYNTAX_INTEGER.equals( syntax ) || SYNTAX_AD_LARGE_INTEGER.equals( syntax ) )
+        {
+            return Type.INTEGER;
+        }
+        else if ( SYNTAX_GENERALIZED_TIME.equals( syntax ) )
+        {
+            return Type.TIME;
+        }
+        else if ( SYNTAX_BOOLEAN.equals( syntax ) )
+        {
+            return Type.BOOLEAN;
+        }
+        else if ( SYNTAX_OCTET_STRING.equals( syntax ) )
+        {
+            return Type.BINARY;
+        }
+        return Type.OTHER;
+    }
+
+
+    /**
+     * @return space separated names of the Octet String attributes, for java.naming.ldap.attributes.binary
+     */
+    String getBinaryAttributes()
+    {
+        return binaryAttributes;
+    }
+
+
+    /**
+     * @return true if values of the attribute are converted when read
+     */
+    public boolean isConverted( String attribute )
+    {
+        Type type = types.get( attribute.toLowerCase( Locale.ENGLISH ) );
+        return type == Type.INTEGER || type == Type.TIME || type == Type.BOOLEAN;
+    }
+
+
+    /**
+     * @return true if the equality rule of the attribute ignores case
+     */
+    public boolean isCaseIgnore( String attribute )
+    {
+        Boolean ci = caseIgnore.get( attribute.toLowerCase( Locale.ENGLISH ) );
+        return ci != null && ci.booleanValue();
+    }
+
+
+    /**
+     * Converts a value, or a list of values, of an attribute to the Java type of its syntax. Values that
+     * cannot be converted are returned as they are.
+     */
+    public Object convert( String attribute, Object value )
+    {
+        Type type = types.get( attribute.toLowerCase( Locale.ENGLISH ) );
+        if ( type == null || value == null )
+        {
+            return value;
+        }
+        if ( value instanceof List )
+        {
+            List<?> values = ( List<?> ) value;
+            List<Object> result = new ArrayList<Object>( values.size() );
+            for ( Object v : values )
+            {
+                result.add( convertValue( type, v ) );
+            }
+            return result;
+        }
+        return convertValue( type, value );
+    }
+
+
+    private static Object convertValue( Type type, Object value )
+    {
+        if ( !( value instanceof String ) )
+        {
+            return value;
+        }
+        String s = ( ( String ) value ).trim();
+        switch ( type )
+        {
+            case INTEGER:
+                try
+                {
+                    return Long.valueOf( s );
+                }
+                catch ( NumberFormatException e )
+                {
+                    try
+                    {
+                        return new BigInteger( s );
+                    }
+                    catch ( NumberFormatException e2 )
+                    {
+                        return value;
+                    }
+                }
+            case TIME:
+                Date date = parseGeneralizedTime( s );
+                return date == null ? value : date;
+            case BOOLEAN:
+                if ( s.equalsIgnoreCase( "TRUE" ) )
+                {
+                    return Boolean.TRUE;
+                }
+                else if ( s.equalsIgnoreCase( "FALSE" ) )
+                {
+                    return Boolean.FALSE;
+                }
+                return value;
+            default:
+                return value;
+        }
+    }
+
+
+    /**
+     * Parses a GeneralizedTime value such as 20120410131942Z or 20120410131942.0+0200.
+     *
+     * @return the time, or null if the value is not a GeneralizedTime
+     */
+    static Date parseGeneralizedTime( String s )
+    {
+        Matcher m = GENERALIZED_TIME.matcher( s );
+        if ( !m.matches() )
+        {
+            return null;
+        }
+        String zone = m.group( 8 );
+        TimeZone tz = zone == null ? TimeZone.getDefault() : TimeZone.getTimeZone( zone.equals( "Z" ) ? "UTC"
+            : "GMT" + zone.substring( 0, 3 ) + ( zone.length() > 3 ? ":" + zone.substring( 3 ) : ":00" ) );
+        Calendar cal = Calendar.getInstance( tz );
+        cal.clear();
+        cal.set( Integer.parseInt( m.group( 1 ) ), Integer.parseInt( m.group( 2 ) ) - 1, Integer.parseInt( m
+            .group( 3 ) ), Integer.parseInt( m.group( 4 ) ), m.group( 5 ) == null ? 0 : Integer.parseInt( m
+            .group( 5 ) ), m.group( 6 ) == null ? 0 : Integer.parseInt( m.group( 6 ) ) );
+        if ( m.group( 7 ) != null )
+        {
+            // Fraction of the last given unit, only fractions of seconds are supported
+            String fraction = ( m.group( 7 ) + "000" ).substring( 0, 3 );
+            cal.set( Calendar.MILLISECOND, m.group( 6 ) == null ? 0 : Integer.parseInt( fraction ) );
+        }
+        return cal.getTime();
+    }
+
+
+    /**
+     * Returns a filter with the values of case-ignoring attributes in lower case, for use as a cache key.
+     * Filter arguments referenced by such values are folded too.
+     *
+     * @param filter the filter
+     * @param args filter arguments, may be null
+     * @return the folded filter, followed by the folded arguments
+     */
+    public String normalizeFilter( String filter, Object[] args )
+    {
+        Object[] foldedArgs = args == null ? null : args.clone();
+        StringBuilder buf = new StringBuilder( filter.length() );
+        int n = filter.length();
+        int attrStart = -1;
+        for ( int i = 0; i < n; i++ )
+        {
+            char c = filter.charAt( i );
+            if ( c == '(' )
+            {
+                attrStart = i + 1;
+                buf.append( c );
+            }
+            else if ( c == '=' && attrStart >= 0 )
+            {
+                String attr = filter.substring( attrStart, i ).replaceAll( "[~<>:].*$", "" ).trim();
+                int end = filter.indexOf( ')', i );
+                end = end < 0 ? n : end;
+                String value = filter.substring( i + 1, end );
+                boolean fold = isCaseIgnore( attr );
+                buf.append( c ).append( fold ? value.toLowerCase( Locale.ENGLISH ) : value );
+                if ( fold && foldedArgs != null && value.matches( "\\{\\d+\\}" ) )
+                {
+                    int arg = Integer.parseInt( value.substring( 1, value.length() - 1 ) );
+                    if ( arg < foldedArgs.length && foldedArgs[arg] instanceof String )
+                    {
+                        foldedArgs[arg] = ( ( String ) foldedArgs[arg] ).toLowerCase( Locale.ENGLISH );
+                    }
+                }
+                attrStart = -1;
+                i = end - 1;
+            }
+            else
+            {
+                buf.append( attrStart >= 0 ? Character.toLowerCase( c ) : c );
+            }
+        }
+        if ( foldedArgs != null )
+        {
+            buf.append( Arrays.deepToString( foldedArgs ) );
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.directory.groovyldap.jndi.FastBindRequest;
+import org.apache.directory.groovyldap.util.ExpiringCache;
+
+
+/**
+ * Verifies user credentials by binding as the user. User names are resolved to DNs with a search that is
+ * cached, and the bind is done on a connection taken from a small pool of connections used for nothing else.
+ * <p>
+ * Connections in the pool are always anonymous. After a successful bind the connection is bound anonymously
+ * again before it is returned to the pool, unless the server accepted the fast concurrent bind operation
+ * (Active Directory), which leaves the connection anonymous anyway. A connection that can not be made
+ * anonymous again is closed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class BindAuthenticator
+{
+    public static final String DEFAULT_USER_FILTER = "(uid={0})";
+
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    private static final long DN_CACHE_TTL_MILLIS = 300000L;
+
+    private static final int DN_CACHE_SIZE = 10000;
+
+    private final LDAP ldap;
+
+    private final ExpiringCache<String, String> dnCache = new ExpiringCache<String, String>( DN_CACHE_TTL_MILLIS,
+        DN_CACHE_SIZE );
+
+    private final LinkedBlockingQueue<BindContext> idle = new LinkedBlockingQueue<BindContext>();
+
+    private final AtomicLong opened = new AtomicLong();
+
+    private volatile String userSearchBase = "";
+
+    private volatile String userFilter = DEFAULT_USER_FILTER;
+
+    private volatile int maxIdle = DEFAULT_MAX_IDLE;
+
+    private volatile boolean fastBind = true;
+
+    private volatile boolean fastBindSupported = true;
+
+
+    private static class BindContext
+    {
+        final LdapContext ctx;
+
+        final boolean fastBind;
+
+
+        BindContext( LdapContext ctx, boolean fastBind )
+        {
+            this.ctx = ctx;
+            this.fastBind = fastBind;
+        }
+    }
+
+
+    BindAuthenticator( LDAP ldap )
+    {
+        this.ldap = ldap;
+    }
+
+
+    /**
+     * Checks the password of a user.
+     *
+     * @param user DN of the user, or a user name that is looked up with the user filter
+     * @param password the password to check
+     * @return true if the directory accepted the credentials
+     * @throws NamingException if the directory could not be asked
+     */
+    public boolean authenticate( String user, String password ) throws NamingException
+    {
+        // An empty password would be an unauthenticated bind, which servers accept for any DN
+        if ( user == null || password == null || password.length() == 0 )
+        {
+            return false;
+        }
+        String dn = resolveDn( user );
+        if ( dn == null )
+        {
+            return false;
+        }
+        return bind( dn, password );
+    }
+
+
+    /**
+     * Returns the DN of a user. Strings that parse as a DN are returned as they are, others are looked up with
+     * the user filter below the user search base.
+     *
+     * @return the DN, or null if no user was found
+     */
+    public String resolveDn( String user ) throws NamingException
+    {
+        if ( user.indexOf( '=' ) > 0 )
+        {
+            try
+            {
+                return DistinguishedName.valueOf( user ).toString();
+            }
+            catch ( InvalidNameException e )
+            {
+                // Not a DN, look it up as a user name
+            }
+        }
+
+        String dn = dnCache.get( user );
+        if ( dn == null )
+        {
+            Search search = new Search();
+            search.setBase( userSearchBase );
+            search.setFilter( userFilter );
+            search.setFilterArgs( new Object[]
+                { user } );
+            search.setAttrs( new String[0] );
+            Object entry = ldap.searchUnique( search );
+            if ( entry instanceof LdapEntry )
+            {
+                dn = ( ( LdapEntry ) entry ).getDistinguishedName().toString();
+                dnCache.put( user, dn );
+            }
+        }
+        return dn;
+    }
+
+
+    private boolean bind( String dn, String password ) throws NamingException
+    {
+        BindContext bc = idle.poll();
+        if ( bc == null )
+        {
+            bc = open();
+        }
+
+        boolean reusable = false;
+        try
+        {
+            LdapContext ctx = bc.ctx;
+            ctx.addToEnvironment( Context.SECURITY_AUTHENTICATION, "simple" );
+            ctx.addToEnvironment( Context.SECURITY_PRINCIPAL, dn );
+            ctx.addToEnvironment( Context.SECURITY_CREDENTIALS, password );
+            try
+            {
+                ldap.rebind( ctx );
+            }
+            catch ( AuthenticationException ae )
+            {
+                // A failed bind leaves the connection anonymous
+                reusable = true;
+                return false;
+            }
+            reusable = bc.fastBind || bindAnonymously( ctx );
+            return true;
+        }
+        finally
+        {
+            release( bc, reusable );
+        }
+    }
+
+
+    /**
+     * Drops the credentials of the last bind, so the connection can be returned to the pool.
+     *
+     * @return true if the connection is anonymous again
+     */
+    private boolean bindAnonymously( LdapContext ctx )
+    {
+        try
+        {
+            ctx.addToEnvironment( Context.SECURITY_AUTHENTICATION, "none" );
+            ctx.removeFromEnvironment( Context.SECURITY_PRINCIPAL );
+            ctx.removeFromEnvironment( Context.SECURITY_CREDENTIALS );
+            ldap.rebind( ctx );
+            return true;
+        }
+        catch ( NamingException e )
+        {
+            return false;
+        }
+    }
+
+
+    private BindContext open() throws NamingException
+    {
+        Properties env = ldap.createEnvironment();
+        env.remove( Context.OBJECT_FACTORIES );
+        env.remove( Context.SECURITY_PRINCIPAL );
+        env.remove( Context.SECURITY_CREDENTIALS );
+        env.setProperty( Context.SECURITY_AUTHENTICATION, "none" );
+
+        LdapContext ctx = ldap.openContext( env );
+        opened.incrementAndGet();
+        boolean fast = false;
+        if ( fastBind && fastBindSupported )
+        {
+            try
+            {
+                if ( isFastBindAdvertised( ctx ) )
+                {
+                    ctx.extendedOperation( new FastBindRequest() );
+                    fast = true;
+                }
+                else
+                {
+                    // Not Active Directory, do not try again
+                    fastBindSupported = false;
+                }
+            }
+            catch ( OperationNotSupportedException e )
+            {
+                // Advertised but refused, do not try again
+                fastBindSupported = false;
+            }
+            catch ( NamingException e )
+            {
+                // Possibly temporary, use normal binds on this connection and try again on the next one
+            }
+        }
+        return new BindContext( ctx, fast );
+    }
+
+
+    private static boolean isFastBindAdvertised( LdapContext ctx ) throws NamingException
+    {
+        Attribute extensions = ctx.getAttributes( "", new String[]
+            { "supportedExtension" } ).get( "supportedExtension" );
+        return extensions != null && extensions.contains( FastBindRequest.OID );
+    }
+
+
+    private void release( BindContext bc, boolean reusable )
+    {
+        try
+        {
+            bc.ctx.removeFromEnvironment( Context.SECURITY_PRINCIPAL );
+            bc.ctx.removeFromEnvironment( Context.SECURITY_CREDENTIALS );
+            if ( reusable && idle.size() < maxIdle && idle.offer( bc ) )
+            {
+                return;
+            }
+        }
+        catch ( NamingException e )
+        {
+            // Close it below
+        }
+        try
+        {
+            bc.ctx.close();
+        }
+        catch ( NamingException e )
+        {
+            // Ignored
+        }
+    }
+
+
+    /**
+     * Closes all idle bind connections.
+     */
+    public void close()
+    {
+        BindContext bc;
+        while ( ( bc = idle.poll() ) != null )
+        {
+            release( bc, false );
+        }
+    }
+
+
+    /**
+     * @return number of bind connections opened so far
+     */
+    public long getOpenedConnections()
+    {
+        return opened.get();
+    }
+
+
+    /**
+     * @return number of bind connections currently kept open in the pool
+     */
+    public int getIdleConnections()
+    {
+        return idle.size();
+    }
+
+
+    public String getUserSearchBase()
+    {
+        return userSearchBase;
+    }
+
+
+    public void setUserSearchBase( String userSearchBase )
+    {
+        this.userSearchBase = userSearchBase;
+        dnCache.clear();
+    }
+
+
+    public String getUserFilter()
+    {
+        return userFilter;
+    }
+
+
+    /**
+     * Sets the filter used to find a user by name, {0} is replaced by the name. Default is "(uid={0})",
+     * use "(sAMAccountName={0})" for Active Directory.
+     */
+    public void setUserFilter( String userFilter )
+    {
+        this.userFilter = userFilter;
+        dnCache.clear();
+    }
+
+
+    public int getMaxIdle()
+    {
+        return maxIdle;
+    }
+
+
+    /**
+     * Sets the number of bind connections kept open between authentications.
+     */
+    public void setMaxIdle( int maxIdle )
+    {
+        this.maxIdle = maxIdle;
+    }
+
+
+    public boolean isFastBind()
+    {
+        return fastBind;
+    }
+
+
+    /**
+     * Enables the fast concurrent bind operation on new bind connections (default true). Servers that do
+     * not support it are detected on the first connection.
+     */
+    public void setFastBind( boolean fastBind )
+    {
+        this.fastBind = fastBind;
+    }
+}
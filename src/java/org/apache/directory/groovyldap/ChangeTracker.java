@@ -0,0 +1,311 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.groovyldap;
+
+
+import groovy.lang.Closure;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+import javax.naming.NamingException;
+
+import org.apache.directory.groovyldap.util.Util;
+
+
+/**
+ * Runs one incremental search for {@link LDAP#eachChange(Search, SyncState, Closure, Closure)}.
+ * <p>
+ * Changed entries are found with the filter (&amp;(filter)(watermark&gt;=last)). Since the comparison
+ * includes the last value, entries that had exactly that value in the previous run are found again; they
+ * are skipped unless their DN is new at that value or their attributes differ from what the previous run
+ * delivered. The latter catches an entry that was modified again within the same second, as modifyTimestamp
+ * does not change then. Deleted entries, and entries that no longer match the
+ * filter, are found by listing all matching DNs every deletionCheckEvery runs and comparing them with the
+ * DNs of the previous list. The state is only updated when the run completes, so a failed run is simply
+ * repeated by the next one.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+class ChangeTracker
+{
+    private static final String UTF8 = "UTF-8";
+
+    private final LDAP ldap;
+
+    private final Search search;
+
+    private final SyncState state;
+
+    private final int pageSize;
+
+    private final Closure changed;
+
+    private final Closure deleted;
+
+
+    ChangeTracker( LDAP ldap, Search search, SyncState state, int pageSize, Closure changed, Closure deleted )
+    {
+        this.ldap = ldap;
+        this.search = search;
+        this.state = state;
+        this.pageSize = pageSize;
+        this.changed = changed;
+        this.deleted = deleted;
+    }
+
+
+    void run() throws NamingException
+    {
+        final String attribute = state.getWatermarkAttribute();
+        final String since = state.getWatermark();
+        final Map<String, String> previousBoundary = state.getBoundary();
+        Set<String> previousKnown = state.getKnown();
+        final Set<String> known = previousKnown == null ? new HashSet<String>() : new HashSet<String>(
+            previousKnown );
+        final Map<String, String> boundary = new HashMap<String, String>();
+        final String[] highest = new String[1];
+
+        ldap.eachEntry( changeSearch( attribute, since ), pageSize, new LDAP.EntryHandler()
+        {
+            public void handle( Object obj ) throws NamingException
+            {
+                LdapEntry entry = ( LdapEntry ) obj;
+                String dn = entry.getDistinguishedName().getNormalizedName();
+                String value = watermarkValue( entry.get( attribute.toLowerCase( Locale.ENGLISH ) ) );
+                if ( value != null )
+                {
+                    String digest = null;
+                    if ( since != null && compare( value, since ) == 0 )
+                    {
+                        digest = digest( entry );
+                        if ( digest.equals( previousBoundary.get( dn ) ) )
+                        {
+                            // Delivered by the previous run, and not modified since
+                            return;
+                        }
+                    }
+                    int c = highest[0] == null ? 1 : compare( value, highest[0] );
+                    if ( c > 0 )
+                    {
+                        highest[0] = value;
+                        boundary.clear();
+                    }
+                    if ( c >= 0 )
+                    {
+                        boundary.put( dn, digest != null ? digest : digest( entry ) );
+                    }
+                }
+                known.add( dn );
+                changed.call( entry );
+            }
+        } );
+
+        String watermark = highest[0];
+        if ( watermark == null || since != null && compare( watermark, since ) == 0 )
+        {
+            // Nothing newer than the previous boundary, keep the entries found there unless delivered again
+            for ( Map.Entry<String, String> e : previousBoundary.entrySet() )
+            {
+                if ( !boundary.containsKey( e.getKey() ) )
+                {
+                    boundary.put( e.getKey(), e.getValue() );
+                }
+            }
+            watermark = watermark == null ? since : watermark;
+        }
+
+        Set<String> current = known;
+        if ( deleted != null && previousKnown != null && ( state.getRuns() + 1 ) % state.getDeletionCheckEvery() == 0 )
+        {
+            current = matchingDns();
+            for ( String dn : known )
+            {
+                if ( !current.contains( dn ) )
+                {
+                    deleted.call( dn );
+                }
+            }
+        }
+        state.update( watermark, boundary, current );
+    }
+
+
+    private Search changeSearch( String attribute, String since )
+    {
+        Search s = new Search( search );
+        String[] attrs = s.getAttrs();
+        if ( attrs == null )
+        {
+            // Operational attributes are only returned when asked for
+            s.setAttrs( new String[]
+                { "*", attribute } );
+        }
+        else if ( !containsIgnoreCase( attrs, attribute ) )
+        {
+            List<String> list = new ArrayList<String>( Arrays.asList( attrs ) );
+            list.add( attribute );
+            s.setAttrs( list.toArray( new String[list.size()] ) );
+        }
+        if ( since != null )
+        {
+            // The value is passed as a filter argument, so it is escaped
+            Object[] args = s.getFilterArgs() == null ? new Object[0] : s.getFilterArgs();
+            Object[] extended = Arrays.copyOf( args, args.length + 1 );
+            extended[args.length] = since;
+            String filter = s.getFilter().trim();
+            if ( !filter.startsWith( "(" ) )
+            {
+                filter = "(" + filter + ")";
+            }
+            s.setFilter( "(&" + filter + "(" + attribute + ">={" + args.length + "}))" );
+            s.setFilterArgs( extended );
+        }
+        return s;
+    }
+
+
+    private Set<String> matchingDns() throws NamingException
+    {
+        Search s = new Search( search );
+        s.setAttrs( new String[0] );
+        final Set<String> dns = new HashSet<String>();
+        ldap.eachEntry( s, pageSize, new LDAP.EntryHandler()
+        {
+            public void handle( Object obj )
+            {
+                dns.add( ( ( LdapEntry ) obj ).getDistinguishedName().getNormalizedName() );
+            }
+        } );
+        return dns;
+    }
+
+
+    /**
+     * Returns a digest of the attributes of an entry, independent of the order of the attributes.
+     */
+    static String digest( Map<String, Object> entry )
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+            for ( String name : new TreeSet<String>( entry.keySet() ) )
+            {
+                md.update( name.getBytes( UTF8 ) );
+                Object value = entry.get( name );
+                for ( Object v : value instanceof List ? ( List<?> ) value : Collections.singletonList( value ) )
+                {
+                    md.update( ( byte ) 0 );
+                    md.update( v instanceof byte[] ? ( byte[] ) v : String.valueOf( watermarkValue( v ) ).getBytes(
+                        UTF8 ) );
+                }
+                md.update( ( byte ) 1 );
+            }
+            return Util.toHex( md.digest() );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( "SHA-256 is not available", e );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 is not available", e );
+        }
+    }
+
+
+    private static boolean containsIgnoreCase( String[] values, String value )
+    {
+        for ( String v : values )
+        {
+            if ( v.equalsIgnoreCase( value ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns the watermark of an entry as a string, as it is compared in filters.
+     */
+    static String watermarkValue( Object value )
+    {
+        if ( value instanceof List )
+        {
+            List<?> values = ( List<?> ) value;
+            value = values.isEmpty() ? null : Collections.max( values, new Comparator<Object>()
+            {
+                public int compare( Object o1, Object o2 )
+                {
+                    return ChangeTracker.compare( watermarkValue( o1 ), watermarkValue( o2 ) );
+                }
+            } );
+        }
+        if ( value == null )
+        {
+            return null;
+        }
+        if ( value instanceof Date )
+        {
+            // A schema-aware LDAP object converts GeneralizedTime values
+            SimpleDateFormat format = new SimpleDateFormat( "yyyyMMddHHmmss'Z'" );
+            format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+            return format.format( ( Date ) value );
+        }
+        return value.toString();
+    }
+
+
+    /**
+     * Compares watermark values: numerically if both are numbers (uSNChanged), otherwise as strings, which
+     * orders GeneralizedTime values of the same format and entryCSN values.
+     */
+    static int compare( String v1, String v2 )
+    {
+        try
+        {
+            long l1 = Long.parseLong( v1 );
+            long l2 = Long.parseLong( v2 );
+            return l1 < l2 ? -1 : ( l1 > l2 ? 1 : 0 );
+        }
+        catch ( NumberFormatException e )
+        {
+            return v1.compareTo( v2 );
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+
+/**
+ * An immutable, parsed distinguished name. Attribute types and string values of the RDNs are case-folded
+ * once when the name is created, so equals(), hashCode() and the parent/ancestor operations work on
+ * pre-computed strings and never parse again.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public final class DistinguishedName implements Comparable<DistinguishedName>, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_CACHE_SIZE = 10000;
+
+    /**
+     * Recently parsed names. Lookups take no lock; when the cache is full it is cleared as a whole, which
+     * is cheap enough since the names are parsed again on demand.
+     */
+    private static final ConcurrentMap<String, DistinguishedName> CACHE =
+        new ConcurrentHashMap<String, DistinguishedName>();
+
+    /**
+     * The empty DN (root DSE).
+     */
+    public static final DistinguishedName ROOT = new DistinguishedName( new Rdn[0], new String[0] );
+
+    /** RDNs, most significant (rightmost) first, like {@link LdapName}. */
+    private final Rdn[] rdns;
+
+    private final String[] normalized;
+
+    private final int hash;
+
+    private transient String name;
+
+
+    private DistinguishedName( Rdn[] rdns, String[] normalized )
+    {
+        this.rdns = rdns;
+        this.normalized = normalized;
+        this.hash = Arrays.hashCode( normalized );
+    }
+
+
+    /**
+     * Returns the parsed form of a DN string. Recently parsed names are cached, so parsing the same DN
+     * over and over (for example the DN of every search result) is a map lookup.
+     *
+     * @param dn string representation of the DN
+     * @return the parsed DN
+     * @throws InvalidNameException if the string is not a valid DN
+     */
+    public static DistinguishedName valueOf( String dn ) throws InvalidNameException
+    {
+        DistinguishedName result = CACHE.get( dn );
+        if ( result == null )
+        {
+            result = parse( dn );
+            if ( CACHE.size() >= MAX_CACHE_SIZE )
+            {
+                CACHE.clear();
+            }
+            CACHE.put( dn, result );
+        }
+        return result;
+    }
+
+
+    private static DistinguishedName parse( String dn ) throws InvalidNameException
+    {
+        List<Rdn> list = new LdapName( dn ).getRdns();
+        Rdn[] rdns = list.toArray( new Rdn[list.size()] );
+        String[] normalized = new String[rdns.length];
+        for ( int i = 0; i < rdns.length; i++ )
+        {
+            normalized[i] = normalize( rdns[i] );
+        }
+        DistinguishedName result = new DistinguishedName( rdns, normalized );
+        result.name = dn;
+        return result;
+    }
+
+
+    private static String normalize( Rdn rdn ) throws InvalidNameException
+    {
+        if ( rdn.size() == 1 )
+        {
+            return normalize( rdn.getType(), rdn.getValue() );
+        }
+
+        // Multi-valued RDN, the order of the AVAs is not significant
+        String[] avas = new String[rdn.size()];
+        int i = 0;
+        try
+        {
+            NamingEnumeration<? extends Attribute> e = rdn.toAttributes().getAll();
+            while ( e.hasMore() )
+            {
+                Attribute attr = e.next();
+                avas[i++] = normalize( attr.getID(), attr.get() );
+            }
+        }
+        catch ( NamingException ne )
+        {
+            InvalidNameException ine = new InvalidNameException( "Invalid RDN: " + rdn );
+            ine.setRootCause( ne );
+            throw ine;
+        }
+        Arrays.sort( avas );
+        StringBuilder buf = new StringBuilder();
+        for ( String ava : avas )
+        {
+            if ( buf.length() > 0 )
+            {
+                buf.append( '+' );
+            }
+            buf.append( ava );
+        }
+        return buf.toString();
+    }
+
+
+    private static String normalize( String type, Object value )
+    {
+        String escaped = Rdn.escapeValue( value );
+        if ( value instanceof String )
+        {
+            escaped = escaped.toLowerCase( Locale.ENGLISH );
+        }
+        return type.toLowerCase( Locale.ENGLISH ) + "=" + escaped;
+    }
+
+
+    /**
+     * @return number of RDNs in this name
+     */
+    public int size()
+    {
+        return rdns.length;
+    }
+
+
+    public boolean isRoot()
+    {
+        return rdns.length == 0;
+    }
+
+
+    /**
+     * @return the leftmost (least significant) RDN, or null for the root DSE
+     */
+    public Rdn getRdn()
+    {
+        return rdns.length == 0 ? null : rdns[rdns.length - 1];
+    }
+
+
+    /**
+     * @return the name of the parent entry, or null for the root DSE
+     */
+    public DistinguishedName getParent()
+    {
+        if ( rdns.length == 0 )
+        {
+            return null;
+        }
+        return new DistinguishedName( Arrays.copyOf( rdns, rdns.length - 1 ), Arrays.copyOf( normalized,
+            normalized.length - 1 ) );
+    }
+
+
+    /**
+     * Creates the name of a child entry of this entry.
+     *
+     * @param rdn RDN of the child, for example "cn=John Doe"
+     * @throws InvalidNameException if rdn is not a valid RDN
+     */
+    public DistinguishedName getChild( String rdn ) throws InvalidNameException
+    {
+        return getChild( new Rdn( rdn ) );
+    }
+
+
+    public DistinguishedName getChild( Rdn rdn ) throws InvalidNameException
+    {
+        Rdn[] childRdns = Arrays.copyOf( rdns, rdns.length + 1 );
+        childRdns[rdns.length] = rdn;
+        String[] childNormalized = Arrays.copyOf( normalized, normalized.length + 1 );
+        childNormalized[normalized.length] = normalize( rdn );
+        return new DistinguishedName( childRdns, childNormalized );
+    }
+
+
+    /**
+     * @return true if this name is a proper ancestor (parent, grandparent, ...) of the other name
+     */
+    public boolean isAncestorOf( DistinguishedName other )
+    {
+        if ( other.normalized.length <= normalized.length )
+        {
+            return false;
+        }
+        for ( int i = normalized.length - 1; i >= 0; i-- )
+        {
+            if ( !normalized[i].equals( other.normalized[i] ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return true if this name is a proper descendant (child, grandchild, ...) of the other name
+     */
+    public boolean isDescendantOf( DistinguishedName other )
+    {
+        return other.isAncestorOf( this );
+    }
+
+
+    /**
+     * @return true if this name is the parent of the other name
+     */
+    public boolean isParentOf( DistinguishedName other )
+    {
+        return other.normalized.length == normalized.length + 1 && isAncestorOf( other );
+    }
+
+
+    /**
+     * @return the normalized (case-folded) string form, suitable as a key
+     */
+    public String getNormalizedName()
+    {
+        StringBuilder buf = new StringBuilder();
+        for ( int i = normalized.length - 1; i >= 0; i-- )
+        {
+            buf.append( normalized[i] );
+            if ( i > 0 )
+            {
+                buf.append( ',' );
+            }
+        }
+        return buf.toString();
+    }
+
+
+    public LdapName toLdapName()
+    {
+        return new LdapName( Arrays.asList( rdns ) );
+    }
+
+
+    @Override
+    public boolean equals( Object obj )
+    {
+        if ( this == obj )
+        {
+            return true;
+        }
+        if ( !( obj instanceof DistinguishedName ) )
+        {
+            return false;
+        }
+        DistinguishedName other = ( DistinguishedName ) obj;
+        return hash == other.hash && Arrays.equals( normalized, other.normalized );
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+
+    /**
+     * Orders names so that an entry sorts directly before its descendants.
+     */
+    public int compareTo( DistinguishedName other )
+    {
+        int n = Math.min( normalized.length, other.normalized.length );
+        for ( int i = 0; i < n; i++ )
+        {
+            int c = normalized[i].compareTo( other.normalized[i] );
+            if ( c != 0 )
+            {
+                return c;
+            }
+        }
+        return normalized.length - other.normalized.length;
+    }
+
+
+    /**
+     * @return the name as given when it was parsed, or built from the RDNs
+     */
+    @Override
+    public String toString()
+    {
+        String s = name;
+        if ( s == null )
+        {
+            s = toLdapName().toString();
+            name = s;
+        }
+        return s;
+    }
+}
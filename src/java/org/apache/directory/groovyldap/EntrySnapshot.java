@@ -0,0 +1,515 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A compact binary file with named lists of entries, read through a memory mapping.
+ * <p>
+ * The file starts with a string table that holds every DN, attribute name and list name once, followed by
+ * an index of entry offsets for each list and the encoded entries. Opening a snapshot only reads the string
+ * offsets and the index; entries are decoded from the mapped file when a list is requested.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public final class EntrySnapshot
+{
+    private static final int MAGIC = 0x4c44534e;
+
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_STRING = 0;
+
+    private static final byte TYPE_BYTES = 1;
+
+    private static final byte TYPE_LONG = 2;
+
+    private static final byte TYPE_INTEGER = 3;
+
+    private static final byte TYPE_BOOLEAN = 4;
+
+    private static final byte TYPE_DATE = 5;
+
+    private static final String UTF8 = "UTF-8";
+
+    private final ByteBuffer buffer;
+
+    private final long created;
+
+    private final int[] stringOffsets;
+
+    private final String[] strings;
+
+    private final int entriesBase;
+
+    private final Map<String, int[]> index;
+
+
+    private EntrySnapshot( ByteBuffer buffer ) throws IOException
+    {
+        this.buffer = buffer;
+        ByteBuffer b = buffer.duplicate();
+        if ( b.getInt() != MAGIC || b.getInt() != VERSION )
+        {
+            throw new IOException( "Not an entry snapshot, or unsupported version" );
+        }
+        created = b.getLong();
+
+        int count = b.getInt();
+        stringOffsets = new int[count];
+        strings = new String[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            stringOffsets[i] = b.position();
+            int len = b.getInt();
+            b.position( b.position() + len );
+        }
+
+        int lists = b.getInt();
+        Map<String, int[]> map = new LinkedHashMap<String, int[]>();
+        for ( int i = 0; i < lists; i++ )
+        {
+            String key = string( b.getInt() );
+            int[] offsets = new int[b.getInt()];
+            for ( int j = 0; j < offsets.length; j++ )
+            {
+                offsets[j] = b.getInt();
+            }
+            map.put( key, offsets );
+        }
+        index = Collections.unmodifiableMap( map );
+
+        b.getInt(); // length of the entry section
+        entriesBase = b.position();
+    }
+
+
+    /**
+     * Maps a snapshot file into memory.
+     *
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static EntrySnapshot open( File file ) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            return new EntrySnapshot( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Writes lists of entries to a snapshot file. The file is written under a temporary name and renamed
+     * when complete, so readers never see a partial file. An entry that appears in several lists is stored once.
+     * Encoded entries are written to a second temporary file while the string table is built, so only the
+     * table and the index are held in memory. Null values are not stored.
+     * <p>
+     * Entries often hold personal data and password hashes, so the file is created readable and writable by
+     * its owner only. If the file system does not let the permissions be restricted, nothing is written.
+     *
+     * @param file the snapshot file
+     * @param lists named lists of entries (maps of attribute names to values, with the DN under "dn")
+     */
+    public static void write( File file, Map<String, ? extends List<?>> lists ) throws IOException
+    {
+        Map<String, Integer> table = new LinkedHashMap<String, Integer>();
+        Map<Object, Integer> written = new IdentityHashMap<Object, Integer>();
+        Map<String, int[]> offsets = new LinkedHashMap<String, int[]>();
+        File entryFile = new File( file.getPath() + ".entries.tmp" );
+        File tmp = new File( file.getPath() + ".tmp" );
+        try
+        {
+            DataOutputStream entries = new DataOutputStream( new BufferedOutputStream( createOwnerOnly(
+                entryFile ) ) );
+            try
+            {
+                for ( Map.Entry<String, ? extends List<?>> list : lists.entrySet() )
+                {
+                    intern( table, list.getKey() );
+                    int[] listOffsets = new int[list.getValue().size()];
+                    int i = 0;
+                    for ( Object obj : list.getValue() )
+                    {
+                        Integer offset = written.get( obj );
+                        if ( offset == null )
+                        {
+                            offset = entries.size();
+                            writeEntry( entries, table, ( Map<?, ?> ) obj );
+                            written.put( obj, offset );
+                        }
+                        listOffsets[i++] = offset;
+                    }
+                    offsets.put( list.getKey(), listOffsets );
+                }
+            }
+            finally
+            {
+                entries.close();
+            }
+            writeFile( tmp, table, offsets, entryFile, entries.size() );
+        }
+        finally
+        {
+            entryFile.delete();
+        }
+
+        if ( !tmp.renameTo( file ) && !( file.delete() && tmp.renameTo( file ) ) )
+        {
+            tmp.delete();
+            throw new IOException( "Could not rename " + tmp + " to " + file );
+        }
+    }
+
+
+    private static void writeFile( File tmp, Map<String, Integer> table, Map<String, int[]> offsets,
+        File entryFile, int entriesLength ) throws IOException
+    {
+        boolean complete = false;
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( createOwnerOnly( tmp ) ) );
+        try
+        {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( System.currentTimeMillis() );
+
+            out.writeInt( table.size() );
+            for ( String s : table.keySet() )
+            {
+                byte[] bytes = s.getBytes( UTF8 );
+                out.writeInt( bytes.length );
+                out.write( bytes );
+            }
+
+            out.writeInt( offsets.size() );
+            for ( Map.Entry<String, int[]> e : offsets.entrySet() )
+            {
+                out.writeInt( table.get( e.getKey() ) );
+                out.writeInt( e.getValue().length );
+                for ( int offset : e.getValue() )
+                {
+                    out.writeInt( offset );
+                }
+            }
+
+            out.writeInt( entriesLength );
+            InputStream in = new FileInputStream( entryFile );
+            try
+            {
+                byte[] buf = new byte[65536];
+                int n;
+                while ( ( n = in.read( buf ) ) > 0 )
+                {
+                    out.write( buf, 0, n );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            complete = true;
+        }
+        finally
+        {
+            out.close();
+            if ( !complete )
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Creates an empty file that only its owner can read and write, and opens it for writing.
+     */
+    private static FileOutputStream createOwnerOnly( File file ) throws IOException
+    {
+        // A file left by an earlier run keeps its permissions, so it is replaced
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Could not delete " + file );
+        }
+        if ( !file.createNewFile() )
+        {
+            throw new IOException( "Could not create " + file );
+        }
+        boolean restricted = file.setReadable( false, false ) && file.setReadable( true, true )
+            && file.setWritable( false, false ) && file.setWritable( true, true );
+        if ( !restricted )
+        {
+            file.delete();
+            throw new IOException( "Could not restrict the permissions of " + file + " to its owner" );
+        }
+        return new FileOutputStream( file );
+    }
+
+
+    private static int intern( Map<String, Integer> table, String s )
+    {
+        Integer i = table.get( s );
+        if ( i == null )
+        {
+            i = table.size();
+            table.put( s, i );
+        }
+        return i;
+    }
+
+
+    private static void writeEntry( DataOutputStream out, Map<String, Integer> table, Map<?, ?> entry )
+        throws IOException
+    {
+        Object dn = entry.get( "dn" );
+        int count = 0;
+        for ( Map.Entry<?, ?> attr : entry.entrySet() )
+        {
+            if ( attr.getValue() != null && !attr.getKey().equals( "dn" ) )
+            {
+                count++;
+            }
+        }
+        out.writeInt( dn == null ? -1 : intern( table, dn.toString() ) );
+        out.writeInt( count );
+        for ( Map.Entry<?, ?> attr : entry.entrySet() )
+        {
+            String name = attr.getKey().toString();
+            Object value = attr.getValue();
+            if ( value == null || name.equals( "dn" ) )
+            {
+                continue;
+            }
+            out.writeInt( intern( table, name ) );
+            if ( value instanceof Collection )
+            {
+                Collection<?> values = ( Collection<?> ) value;
+                int n = 0;
+                for ( Object v : values )
+                {
+                    n += v == null ? 0 : 1;
+                }
+                out.writeInt( n );
+                for ( Object v : values )
+                {
+                    if ( v != null )
+                    {
+                        writeValue( out, v );
+                    }
+                }
+            }
+            else
+            {
+                // -1 marks a single value, which is not wrapped in a list when read
+                out.writeInt( -1 );
+                writeValue( out, value );
+            }
+        }
+    }
+
+
+    private static void writeValue( DataOutputStream out, Object value ) throws IOException
+    {
+        if ( value instanceof byte[] )
+        {
+            byte[] bytes = ( byte[] ) value;
+            out.writeByte( TYPE_BYTES );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+        else if ( value instanceof Long )
+        {
+            out.writeByte( TYPE_LONG );
+            out.writeLong( ( Long ) value );
+        }
+        else if ( value instanceof Integer )
+        {
+            out.writeByte( TYPE_INTEGER );
+            out.writeInt( ( Integer ) value );
+        }
+        else if ( value instanceof Boolean )
+        {
+            out.writeByte( TYPE_BOOLEAN );
+            out.writeBoolean( ( Boolean ) value );
+        }
+        else if ( value instanceof Date )
+        {
+            out.writeByte( TYPE_DATE );
+            out.writeLong( ( ( Date ) value ).getTime() );
+        }
+        else
+        {
+            byte[] bytes = String.valueOf( value ).getBytes( UTF8 );
+            out.writeByte( TYPE_STRING );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+    }
+
+
+    /**
+     * @return time the snapshot was written, in milliseconds since the epoch
+     */
+    public long getCreated()
+    {
+        return created;
+    }
+
+
+    /**
+     * @return names of the lists in this snapshot
+     */
+    public Set<String> getKeys()
+    {
+        return index.keySet();
+    }
+
+
+    /**
+     * Decodes a list of entries.
+     *
+     * @return the entries, or null if the snapshot has no list with this name
+     */
+    public List<Object> getEntries( String key ) throws IOException
+    {
+        int[] offsets = index.get( key );
+        if ( offsets == null )
+        {
+            return null;
+        }
+        List<Object> result = new ArrayList<Object>( offsets.length );
+        Map<Integer, LdapEntry> decoded = new HashMap<Integer, LdapEntry>();
+        ByteBuffer b = buffer.duplicate();
+        for ( int offset : offsets )
+        {
+            LdapEntry entry = decoded.get( offset );
+            if ( entry == null )
+            {
+                b.position( entriesBase + offset );
+                entry = readEntry( b );
+                decoded.put( offset, entry );
+            }
+            result.add( entry );
+        }
+        return result;
+    }
+
+
+    private LdapEntry readEntry( ByteBuffer b ) throws IOException
+    {
+        int dn = b.getInt();
+        LdapEntry entry = dn < 0 ? new LdapEntry() : new LdapEntry( string( dn ) );
+        int attrs = b.getInt();
+        for ( int i = 0; i < attrs; i++ )
+        {
+            String name = string( b.getInt() );
+            int count = b.getInt();
+            if ( count < 0 )
+            {
+                entry.put( name, readValue( b ) );
+            }
+            else
+            {
+                List<Object> values = new ArrayList<Object>( count );
+                for ( int j = 0; j < count; j++ )
+                {
+                    values.add( readValue( b ) );
+                }
+                entry.put( name, values );
+            }
+        }
+        return entry;
+    }
+
+
+    private static Object readValue( ByteBuffer b ) throws IOException
+    {
+        byte type = b.get();
+        switch ( type )
+        {
+            case TYPE_STRING:
+                return new String( readBytes( b ), UTF8 );
+            case TYPE_BYTES:
+                return readBytes( b );
+            case TYPE_LONG:
+                return b.getLong();
+            case TYPE_INTEGER:
+                return b.getInt();
+            case TYPE_BOOLEAN:
+                return b.get() != 0;
+            case TYPE_DATE:
+                return new Date( b.getLong() );
+            default:
+                throw new IOException( "Unknown value type " + type + " in snapshot" );
+        }
+    }
+
+
+    private static byte[] readBytes( ByteBuffer b )
+    {
+        byte[] bytes = new byte[b.getInt()];
+        b.get( bytes );
+        return bytes;
+    }
+
+
+    private String string( int i ) throws IOException
+    {
+        String s = strings[i];
+        if ( s == null )
+        {
+            ByteBuffer b = buffer.duplicate();
+            b.position( stringOffsets[i] );
+            s = new String( readBytes( b ), UTF8 );
+            // Strings are immutable, a concurrent decode of the same string is harmless
+            strings[i] = s;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import groovy.lang.Closure;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+/**
+ * Sorts entries by attribute values with bounded memory. Entries are collected in memory until the buffer
+ * is full; the buffer is then sorted and written to a temporary file. When all entries have been added, the
+ * sorted runs are merged and passed to a closure in order. At most maxFanIn runs are merged at a time; with
+ * more runs, groups of runs are first merged into longer runs, until few enough are left.
+ * <p>
+ * String values are compared ignoring case, entries without a value sort last, and entries with equal
+ * values are ordered by DN. Duplicates (entries with the same DN) are therefore adjacent and can be dropped
+ * while merging.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class ExternalSorter
+{
+    /** Objects written before the output stream handle table is reset. */
+    private static final int RESET_INTERVAL = 1000;
+
+    public static final int DEFAULT_MAX_FAN_IN = 64;
+
+    private final Comparator<Object> comparator;
+
+    private final boolean dedup;
+
+    private final int bufferSize;
+
+    private final File tempDirectory;
+
+    private final List<Object> buffer = new ArrayList<Object>();
+
+    private final List<File> runs = new ArrayList<File>();
+
+    private int maxFanIn = DEFAULT_MAX_FAN_IN;
+
+
+    /**
+     * Receives merged entries.
+     */
+    private interface Sink
+    {
+        void accept( Object entry ) throws IOException;
+    }
+
+
+    private static class RunWriter implements Sink
+    {
+        final ObjectOutputStream out;
+
+        int count;
+
+
+        RunWriter( File file ) throws IOException
+        {
+            out = new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+        }
+
+
+        public void accept( Object entry ) throws IOException
+        {
+            out.writeObject( entry );
+            if ( ++count % RESET_INTERVAL == 0 )
+            {
+                out.reset();
+            }
+        }
+    }
+
+
+    private static class Run
+    {
+        final ObjectInputStream in;
+
+        Object head;
+
+
+        Run( File file ) throws IOException
+        {
+            in = new ObjectInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        }
+
+
+        boolean next() throws IOException
+        {
+            try
+            {
+                head = in.readObject();
+                return true;
+            }
+            catch ( EOFException e )
+            {
+                return false;
+            }
+            catch ( ClassNotFoundException e )
+            {
+                throw new IOException( "Unreadable sort run: " + e.getMessage() );
+            }
+        }
+    }
+
+
+    /**
+     * @param sortBy attribute names, most significant first
+     * @param dedup if true, only the first of several entries with the same DN is passed on
+     * @param bufferSize number of entries kept in memory before a sorted run is written to disk
+     * @param tempDirectory directory for the sorted runs, null for the default temporary directory
+     */
+    public ExternalSorter( List<String> sortBy, boolean dedup, int bufferSize, File tempDirectory )
+    {
+        if ( bufferSize < 1 )
+        {
+            throw new IllegalArgumentException( "bufferSize must be positive" );
+        }
+        this.comparator = new EntryComparator( sortBy.toArray( new String[sortBy.size()] ) );
+        this.dedup = dedup;
+        this.bufferSize = bufferSize;
+        this.tempDirectory = tempDirectory;
+    }
+
+
+    public void add( Object entry ) throws IOException
+    {
+        buffer.add( entry );
+        if ( buffer.size() >= bufferSize )
+        {
+            spill();
+        }
+    }
+
+
+    private void spill() throws IOException
+    {
+        Collections.sort( buffer, comparator );
+        File file = File.createTempFile( "ldapsort", ".run", tempDirectory );
+        runs.add( file );
+        RunWriter writer = new RunWriter( file );
+        try
+        {
+            for ( Object entry : buffer )
+            {
+                writer.accept( entry );
+            }
+        }
+        finally
+        {
+            writer.out.close();
+        }
+        buffer.clear();
+    }
+
+
+    /**
+     * Passes all added entries to the closure in sorted order.
+     */
+    public void each( final Closure closure ) throws IOException
+    {
+        if ( runs.isEmpty() )
+        {
+            Collections.sort( buffer, comparator );
+            Object previous = null;
+            for ( Object entry : buffer )
+            {
+                if ( !isDuplicate( previous, entry ) )
+                {
+                    closure.call( entry );
+                }
+                previous = entry;
+            }
+            return;
+        }
+
+        if ( !buffer.isEmpty() )
+        {
+            spill();
+        }
+
+        while ( runs.size() > maxFanIn )
+        {
+            mergePass();
+        }
+        merge( runs, new Sink()
+        {
+            public void accept( Object entry )
+            {
+                closure.call( entry );
+            }
+        } );
+    }
+
+
+    /**
+     * Merges each group of maxFanIn runs into one run.
+     */
+    private void mergePass() throws IOException
+    {
+        List<File> merged = new ArrayList<File>();
+        boolean complete = false;
+        try
+        {
+            for ( int i = 0; i < runs.size(); i += maxFanIn )
+            {
+                List<File> group = runs.subList( i, Math.min( i + maxFanIn, runs.size() ) );
+                if ( group.size() == 1 )
+                {
+                    merged.add( group.get( 0 ) );
+                    continue;
+                }
+                File file = File.createTempFile( "ldapsort", ".run", tempDirectory );
+                merged.add( file );
+                RunWriter writer = new RunWriter( file );
+                try
+                {
+                    merge( group, writer );
+                }
+                finally
+                {
+                    writer.out.close();
+                }
+                for ( File run : group )
+                {
+                    run.delete();
+                }
+            }
+            complete = true;
+        }
+        finally
+        {
+            if ( complete )
+            {
+                runs.clear();
+            }
+            // Otherwise keep the runs of this pass as well, so close() deletes them
+            runs.addAll( merged );
+        }
+    }
+
+
+    private void merge( List<File> files, Sink sink ) throws IOException
+    {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>( files.size(), new Comparator<Run>()
+        {
+            public int compare( Run r1, Run r2 )
+            {
+                return comparator.compare( r1.head, r2.head );
+            }
+        } );
+        List<Run> open = new ArrayList<Run>();
+        try
+        {
+            for ( File file : files )
+            {
+                Run run = new Run( file );
+                open.add( run );
+                if ( run.next() )
+                {
+                    queue.add( run );
+                }
+            }
+
+            Object previous = null;
+            while ( !queue.isEmpty() )
+            {
+                Run run = queue.poll();
+                Object entry = run.head;
+                if ( !isDuplicate( previous, entry ) )
+                {
+                    sink.accept( entry );
+                }
+                previous = entry;
+                if ( run.next() )
+                {
+                    queue.add( run );
+                }
+            }
+        }
+        finally
+        {
+            for ( Run run : open )
+            {
+                try
+                {
+                    run.in.close();
+                }
+                catch ( IOException e )
+                {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+
+    private boolean isDuplicate( Object previous, Object entry )
+    {
+        if ( !dedup || previous == null )
+        {
+            return false;
+        }
+        if ( previous instanceof LdapEntry && entry instanceof LdapEntry )
+        {
+            return ( ( LdapEntry ) previous ).getDistinguishedName().equals(
+                ( ( LdapEntry ) entry ).getDistinguishedName() );
+        }
+        return previous.equals( entry );
+    }
+
+
+    public int getMaxFanIn()
+    {
+        return maxFanIn;
+    }
+
+
+    /**
+     * Sets the number of runs merged at a time, which is also the number of files open at a time (default 64).
+     */
+    public void setMaxFanIn( int maxFanIn )
+    {
+        if ( maxFanIn < 2 )
+        {
+            throw new IllegalArgumentException( "maxFanIn must be at least 2" );
+        }
+        this.maxFanIn = maxFanIn;
+    }
+
+
+    /**
+     * Deletes the temporary files.
+     */
+    public void close()
+    {
+        for ( File file : runs )
+        {
+            file.delete();
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+
+    private static class EntryComparator implements Comparator<Object>
+    {
+        private final String[] attributes;
+
+
+        EntryComparator( String[] attributes )
+        {
+            this.attributes = new String[attributes.length];
+            for ( int i = 0; i < attributes.length; i++ )
+            {
+                // Entries use lower case attribute names
+                this.attributes[i] = attributes[i].toLowerCase( Locale.ENGLISH );
+            }
+        }
+
+
+        public int compare( Object o1, Object o2 )
+        {
+            Map<?, ?> e1 = ( Map<?, ?> ) o1;
+            Map<?, ?> e2 = ( Map<?, ?> ) o2;
+            for ( String attr : attributes )
+            {
+                int c = compareValues( first( e1.get( attr ) ), first( e2.get( attr ) ) );
+                if ( c != 0 )
+                {
+                    return c;
+                }
+            }
+            if ( o1 instanceof LdapEntry && o2 instanceof LdapEntry )
+            {
+                DistinguishedName dn1 = ( ( LdapEntry ) o1 ).getDistinguishedName();
+                DistinguishedName dn2 = ( ( LdapEntry ) o2 ).getDistinguishedName();
+                if ( dn1 != null && dn2 != null )
+                {
+                    return dn1.compareTo( dn2 );
+                }
+            }
+            return 0;
+        }
+
+
+        private static Object first( Object value )
+        {
+            if ( value instanceof List )
+            {
+                List<?> values = ( List<?> ) value;
+                return values.isEmpty() ? null : values.get( 0 );
+            }
+            return value;
+        }
+
+
+        @SuppressWarnings("unchecked")
+        private static int compareValues( Object v1, Object v2 )
+        {
+            if ( v1 == null || v2 == null )
+            {
+                return v1 == null ? ( v2 == null ? 0 : 1 ) : -1;
+            }
+            if ( v1 instanceof String && v2 instanceof String )
+            {
+                return String.CASE_INSENSITIVE_ORDER.compare( ( String ) v1, ( String ) v2 );
+            }
+            if ( v1 instanceof Comparable && v1.getClass() == v2.getClass() )
+            {
+                return ( ( Comparable<Object> ) v1 ).compareTo( v2 );
+            }
+            return String.CASE_INSENSITIVE_ORDER.compare( v1.toString(), v2.toString() );
+        }
+    }
+}
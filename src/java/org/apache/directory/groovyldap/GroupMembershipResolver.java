@@ -0,0 +1,255 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.NamingException;
+
+import org.apache.directory.groovyldap.util.ExpiringCache;
+
+
+/**
+ * Resolves nested group membership. The groups of an entry are found level by level: each level is one
+ * search for groups whose member attribute contains any of the DNs found on the previous level, with many
+ * DNs combined in one OR filter. The transitive closure is cached per member DN, and cached closures of
+ * groups met on the way are reused instead of being searched again.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class GroupMembershipResolver
+{
+    public static final String DEFAULT_GROUP_FILTER = "(|(objectClass=groupOfNames)(objectClass=groupOfUniqueNames)(objectClass=group))";
+
+    public static final long DEFAULT_TTL_MILLIS = 600000L;
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    private final LDAP ldap;
+
+    private final ExpiringCache<DistinguishedName, Set<DistinguishedName>> closures;
+
+    private volatile String groupSearchBase = "";
+
+    private volatile String groupFilter = DEFAULT_GROUP_FILTER;
+
+    private volatile String memberAttribute = "member";
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+
+    public GroupMembershipResolver( LDAP ldap )
+    {
+        this( ldap, DEFAULT_TTL_MILLIS, DEFAULT_MAX_SIZE );
+    }
+
+
+    /**
+     * @param ldap connection used for the group searches
+     * @param ttlMillis how long a resolved membership is cached
+     * @param maxSize maximum number of cached members
+     */
+    public GroupMembershipResolver( LDAP ldap, long ttlMillis, int maxSize )
+    {
+        this.ldap = ldap;
+        this.closures = new ExpiringCache<DistinguishedName, Set<DistinguishedName>>( ttlMillis, maxSize );
+    }
+
+
+    /**
+     * Checks whether an entry is a member of a group, directly or through nested groups.
+     */
+    public boolean isMember( String memberDn, String groupDn ) throws NamingException
+    {
+        return groupsOf( DistinguishedName.valueOf( memberDn ) ).contains( DistinguishedName.valueOf( groupDn ) );
+    }
+
+
+    /**
+     * Returns all groups an entry is a member of, directly or through nested groups.
+     *
+     * @param memberDn DN of a user or group
+     * @return unmodifiable set of group DNs
+     */
+    public Set<DistinguishedName> groupsOf( String memberDn ) throws NamingException
+    {
+        return groupsOf( DistinguishedName.valueOf( memberDn ) );
+    }
+
+
+    public Set<DistinguishedName> groupsOf( DistinguishedName member ) throws NamingException
+    {
+        Set<DistinguishedName> groups = closures.get( member );
+        if ( groups == null )
+        {
+            groups = Collections.unmodifiableSet( resolve( member ) );
+            closures.put( member, groups );
+        }
+        return groups;
+    }
+
+
+    private Set<DistinguishedName> resolve( DistinguishedName member ) throws NamingException
+    {
+        Set<DistinguishedName> result = new HashSet<DistinguishedName>();
+        List<DistinguishedName> level = Collections.singletonList( member );
+        while ( !level.isEmpty() )
+        {
+            List<DistinguishedName> next = new ArrayList<DistinguishedName>();
+            List<DistinguishedName> unresolved = new ArrayList<DistinguishedName>();
+            for ( DistinguishedName dn : level )
+            {
+                Set<DistinguishedName> known = dn == member ? null : closures.get( dn );
+                if ( known != null )
+                {
+                    result.addAll( known );
+                }
+                else
+                {
+                    unresolved.add( dn );
+                }
+            }
+
+            int size = batchSize;
+            for ( int i = 0; i < unresolved.size(); i += size )
+            {
+                List<DistinguishedName> batch = unresolved.subList( i, Math.min( i + size, unresolved.size() ) );
+                for ( Object obj : ldap.search( createSearch( batch ) ) )
+                {
+                    DistinguishedName group = ( ( LdapEntry ) obj ).getDistinguishedName();
+                    if ( result.add( group ) )
+                    {
+                        next.add( group );
+                    }
+                }
+            }
+            level = next;
+        }
+        return result;
+    }
+
+
+    private Search createSearch( List<DistinguishedName> members )
+    {
+        String attr = memberAttribute;
+        StringBuilder filter = new StringBuilder( "(&" ).append( groupFilter ).append( "(|" );
+        Object[] args = new Object[members.size()];
+        for ( int i = 0; i < args.length; i++ )
+        {
+            filter.append( '(' ).append( attr ).append( "={" ).append( i ).append( "})" );
+            args[i] = members.get( i ).toString();
+        }
+        filter.append( "))" );
+
+        Search search = new Search();
+        search.setBase( groupSearchBase );
+        search.setFilter( filter.toString() );
+        search.setFilterArgs( args );
+        search.setAttrs( new String[0] );
+        return search;
+    }
+
+
+    /**
+     * Forgets the cached groups of one member. Use {@link #invalidateAll()} after a group was changed,
+     * since that affects all members of the group and its nested groups.
+     */
+    public void invalidate( String memberDn ) throws NamingException
+    {
+        closures.remove( DistinguishedName.valueOf( memberDn ) );
+    }
+
+
+    public void invalidateAll()
+    {
+        closures.clear();
+    }
+
+
+    public String getGroupSearchBase()
+    {
+        return groupSearchBase;
+    }
+
+
+    public void setGroupSearchBase( String groupSearchBase )
+    {
+        this.groupSearchBase = groupSearchBase;
+        closures.clear();
+    }
+
+
+    public String getGroupFilter()
+    {
+        return groupFilter;
+    }
+
+
+    public void setGroupFilter( String groupFilter )
+    {
+        this.groupFilter = groupFilter;
+        closures.clear();
+    }
+
+
+    public String getMemberAttribute()
+    {
+        return memberAttribute;
+    }
+
+
+    /**
+     * Sets the attribute of a group that holds the member DNs, "member" by default. Use "uniqueMember"
+     * for groupOfUniqueNames.
+     */
+    public void setMemberAttribute( String memberAttribute )
+    {
+        this.memberAttribute = memberAttribute;
+        closures.clear();
+    }
+
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+
+    /**
+     * Sets how many member DNs are combined in one search filter.
+     */
+    public void setBatchSize( int batchSize )
+    {
+        if ( batchSize < 1 )
+        {
+            throw new IllegalArgumentException( "batchSize must be positive" );
+        }
+        this.batchSize = batchSize;
+    }
+}
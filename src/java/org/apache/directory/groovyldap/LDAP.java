@@ -23,15 +23,28 @@ package org.apache.directory.groovyldap;
 
 import groovy.lang.Closure;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Locale;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
@@ -39,15 +52,26 @@ import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
-import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.Rdn;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
 
+import org.apache.directory.groovyldap.jndi.TlsSocketFactory;
 import org.apache.directory.groovyldap.util.Util;
 
 
 /**
  * A wrapper class which provides LDAP functionality to Groovy.
+ * <p>
+ * Instances are safe for concurrent use by many threads. The connection settings are fixed when the object
+ * is created, every operation runs in its own context (secure connections are kept in a pool of this object,
+ * parallel traversals use the JNDI connection pool), and Search objects passed in are copied before use, so a
+ * caller may change or reuse them freely.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  * @version $Rev$, $Date$
@@ -56,13 +80,68 @@ public class LDAP
 {
     private static final String DEFAULT_URL = "ldap://localhost:389/";
 
-    private String url;
+    private static final int DEFAULT_LDAPS_PORT = 636;
 
-    private boolean anonymousBind;
+    /**
+     * Number of tree levels below the search base that a parallel traversal splits into separate tasks.
+     */
+    public static final int DEFAULT_SPLIT_DEPTH = 3;
+
+    /**
+     * Number of children above which a parallel traversal reads the subtree of an entry with one SUB search
+     * instead of a separate task per child.
+     */
+    public static final int DEFAULT_MAX_SPLIT_CHILDREN = 100;
+
+    /**
+     * Environment of the operations of a parallel traversal: its workers reuse pooled JNDI connections
+     * instead of opening a connection for every subtree. Other operations are not affected.
+     */
+    static final Map<String, String> POOLED_CONNECTIONS = Collections.singletonMap( "com.sun.jndi.ldap.connect.pool",
+        "true" );
+
+    /**
+     * Number of entries a sorted search keeps in memory before it writes a sorted run to disk.
+     */
+    public static final int DEFAULT_SORT_BUFFER_SIZE = 50000;
+
+    /**
+     * Number of entries requested per page by eachChange and by the subtree searches of eachEntryParallel.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private static final Logger LOG = Logger.getLogger( LDAP.class.getName() );
+
+    private final String url;
 
-    private String bindUser;
+    private final boolean anonymousBind;
 
-    private String bindPassword;
+    private final String bindUser;
+
+    private final String bindPassword;
+
+    /** Bind user and a digest of the password, used in coalescing keys instead of the credentials. */
+    private final String bindIdentity;
+
+    private volatile NegativeCache negativeCache;
+
+    private volatile SearchCoalescer searchCoalescer;
+
+    private volatile BindAuthenticator authenticator;
+
+    private volatile int sortBufferSize = DEFAULT_SORT_BUFFER_SIZE;
+
+    private volatile int pageSize = DEFAULT_PAGE_SIZE;
+
+    private volatile QueryProfiler profiler;
+
+    private volatile boolean schemaAware;
+
+    private volatile AttributeSchema schema;
+
+    private volatile TlsConfiguration tls;
+
+    private SecureContextPool securePool;
 
 
     protected Properties createEnvironment()
@@ -71,11 +150,25 @@ public class LDAP
         env.setProperty( Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory" );
         env.setProperty( Context.PROVIDER_URL, url );
         env.setProperty( Context.OBJECT_FACTORIES, "org.apache.directory.groovyldap.jndi.DirContextToMapObjectFactory" );
+        if ( isLdaps() && tls != null )
+        {
+            env.setProperty( "java.naming.ldap.factory.socket", TlsSocketFactory.class.getName() );
+        }
         if ( !anonymousBind )
         {
             env.setProperty( Context.SECURITY_PRINCIPAL, bindUser );
             env.setProperty( Context.SECURITY_CREDENTIALS, bindPassword );
         }
+        // The schema may have been read while schema awareness was on, or through getSchema()
+        AttributeSchema s = schema;
+        if ( schemaAware && s != null )
+        {
+            env.put( AttributeSchema.ENVIRONMENT_KEY, s );
+            if ( s.getBinaryAttributes().length() > 0 )
+            {
+                env.setProperty( "java.naming.ldap.attributes.binary", s.getBinaryAttributes() );
+            }
+        }
         return env;
     }
 
@@ -90,6 +183,9 @@ public class LDAP
     {
         this.url = url;
         this.anonymousBind = true;
+        this.bindUser = null;
+        this.bindPassword = null;
+        this.bindIdentity = "";
     }
 
 
@@ -99,6 +195,7 @@ public class LDAP
         this.anonymousBind = false;
         this.bindUser = bindUser;
         this.bindPassword = bindPassword;
+        this.bindIdentity = bindUser + '\u0000' + digest( bindPassword );
     }
 
 
@@ -121,6 +218,366 @@ public class LDAP
         return new LDAP( url, bindUser, bindPassword );
     }
 
+    public NegativeCache getNegativeCache()
+    {
+        return negativeCache;
+    }
+
+
+    /**
+     * Sets a cache that remembers missing entries and empty unique searches. Misses found by exists, read and
+     * searchUnique are remembered until the cache TTL has passed, or until this object adds, modifies or renames
+     * an entry. Set to null (the default) to always ask the directory.
+     */
+    public void setNegativeCache( NegativeCache negativeCache )
+    {
+        this.negativeCache = negativeCache;
+    }
+
+
+    public SearchCoalescer getSearchCoalescer()
+    {
+        return searchCoalescer;
+    }
+
+
+    /**
+     * Sets a coalescer that lets concurrent identical searches share one server request. Every caller
+     * gets its own copy of the result, so it can be changed like any other search result. A coalescer may
+     * be shared by several LDAP objects, the URL and bind identity are part of the search key. Set to null
+     * (the default) to disable.
+     */
+    public void setSearchCoalescer( SearchCoalescer searchCoalescer )
+    {
+        this.searchCoalescer = searchCoalescer;
+    }
+
+
+    public QueryProfiler getProfiler()
+    {
+        return profiler;
+    }
+
+
+    /**
+     * Sets a profiler that records statistics and slow operations of searches. A profiler may be shared
+     * by several LDAP objects. Set to null (the default) to disable.
+     */
+    public void setProfiler( QueryProfiler profiler )
+    {
+        this.profiler = profiler;
+    }
+
+
+    public int getSortBufferSize()
+    {
+        return sortBufferSize;
+    }
+
+
+    /**
+     * Sets the number of entries that eachEntrySorted sorts in memory before it spills to temporary files.
+     */
+    public void setSortBufferSize( int sortBufferSize )
+    {
+        if ( sortBufferSize < 1 )
+        {
+            throw new IllegalArgumentException( "sortBufferSize must be positive" );
+        }
+        this.sortBufferSize = sortBufferSize;
+    }
+
+
+    public boolean isSchemaAware()
+    {
+        return schemaAware;
+    }
+
+
+    /**
+     * Enables conversion of attribute values by their schema syntax: numbers become Long, times Date,
+     * booleans Boolean and Octet String values byte[]. The schema is read from the directory once, on the
+     * next operation. Values are converted when an attribute is first read from an entry. When enabled,
+     * the negative cache also ignores case in the values of case-insensitive attributes.
+     * <p>
+     * If the directory does not let the schema be read, a warning is logged and values are returned
+     * without conversion.
+     */
+    public void setSchemaAware( boolean schemaAware )
+    {
+        this.schemaAware = schemaAware;
+    }
+
+
+    /**
+     * Returns the attribute types of the directory. They are read once per URL and cached.
+     */
+    public AttributeSchema getSchema() throws NamingException
+    {
+        AttributeSchema result = schema;
+        if ( result == null )
+        {
+            result = AttributeSchema.forDirectory( this, url );
+            schema = result;
+        }
+        return result;
+    }
+
+
+    public TlsConfiguration getTls()
+    {
+        return tls;
+    }
+
+
+    /**
+     * Sets the trust material for ldaps:// URLs, or enables StartTLS for ldap:// URLs. Secure connections
+     * are kept open and reused by later operations of this object; call {@link #close()} when the object is
+     * no longer needed.
+     */
+    public void setTls( TlsConfiguration tls )
+    {
+        this.tls = tls;
+        synchronized ( this )
+        {
+            if ( securePool != null )
+            {
+                securePool.close();
+                securePool = null;
+            }
+        }
+    }
+
+
+    boolean isLdaps()
+    {
+        return url.toLowerCase( Locale.ENGLISH ).startsWith( "ldaps:" );
+    }
+
+
+    boolean isStartTls()
+    {
+        TlsConfiguration t = tls;
+        return t != null && t.isStartTls() && !isLdaps();
+    }
+
+
+    /**
+     * @return true if connections use TLS, either with an ldaps:// URL or with StartTLS
+     */
+    public boolean isSecure()
+    {
+        return isLdaps() || isStartTls();
+    }
+
+
+    /**
+     * Returns counters of the secure connection pool: opened, reused and idle connections.
+     */
+    public Map<String, Long> getSecureConnectionStatistics()
+    {
+        return getSecurePool().getStatistics();
+    }
+
+
+    private synchronized SecureContextPool getSecurePool()
+    {
+        if ( securePool == null )
+        {
+            securePool = new SecureContextPool( this );
+        }
+        return securePool;
+    }
+
+
+    /**
+     * Closes the connections this object keeps open: secure connections and bind connections.
+     */
+    public void close()
+    {
+        synchronized ( this )
+        {
+            if ( securePool != null )
+            {
+                securePool.close();
+            }
+        }
+        if ( authenticator != null )
+        {
+            authenticator.close();
+        }
+    }
+
+
+    /**
+     * Opens a context. With StartTLS, the connection is opened anonymously and the credentials are only
+     * sent after TLS has been negotiated.
+     */
+    LdapContext openContext( Properties env ) throws NamingException
+    {
+        TlsConfiguration t = tls;
+        if ( !isSecure() || t == null )
+        {
+            return new InitialLdapContext( env, null );
+        }
+
+        boolean startTls = isStartTls();
+        Object principal = null;
+        Object credentials = null;
+        Object authentication = null;
+        if ( startTls )
+        {
+            principal = env.remove( Context.SECURITY_PRINCIPAL );
+            credentials = env.remove( Context.SECURITY_CREDENTIALS );
+            authentication = env.remove( Context.SECURITY_AUTHENTICATION );
+            env.setProperty( Context.SECURITY_AUTHENTICATION, "none" );
+        }
+
+        registerSocketFactory( t );
+        LdapContext ctx = null;
+        try
+        {
+            ctx = new InitialLdapContext( env, null );
+            if ( startTls )
+            {
+                StartTlsResponse response = ( StartTlsResponse ) ctx.extendedOperation( new StartTlsRequest() );
+                response.negotiate( t.getSocketFactory() );
+                if ( principal != null )
+                {
+                    // Binds on the TLS connection with the next operation
+                    ctx.addToEnvironment( Context.SECURITY_AUTHENTICATION, authentication != null ? authentication
+                        : "simple" );
+                    ctx.addToEnvironment( Context.SECURITY_PRINCIPAL, principal );
+                    ctx.addToEnvironment( Context.SECURITY_CREDENTIALS, credentials );
+                }
+            }
+            LdapContext result = ctx;
+            ctx = null;
+            return result;
+        }
+        catch ( IOException e )
+        {
+            NamingException ne = new NamingException( "StartTLS failed: " + e.getMessage() );
+            ne.setRootCause( e );
+            throw ne;
+        }
+        finally
+        {
+            if ( ctx != null )
+            {
+                ctx.close();
+            }
+        }
+    }
+
+
+    /**
+     * Binds again with the credentials in the environment of a context. With StartTLS the bind is done on
+     * the same connection, as a new connection would send the credentials before TLS is negotiated.
+     */
+    void rebind( LdapContext ctx ) throws NamingException
+    {
+        if ( isStartTls() )
+        {
+            // The first operation after a change of credentials binds
+            ctx.getAttributes( "", new String[]
+                { "1.1" } );
+            return;
+        }
+        TlsConfiguration t = tls;
+        if ( t != null )
+        {
+            registerSocketFactory( t );
+        }
+        ctx.reconnect( null );
+    }
+
+
+    /**
+     * Makes ldaps:// connections to the server of this object use the trust material of the configuration.
+     */
+    private void registerSocketFactory( TlsConfiguration t ) throws NamingException
+    {
+        if ( !isLdaps() )
+        {
+            return;
+        }
+        // Not parsed as a URI, the DN in an LDAP URL may contain spaces
+        String authority = url.substring( url.indexOf( "://" ) + 3 );
+        int slash = authority.indexOf( '/' );
+        if ( slash >= 0 )
+        {
+            authority = authority.substring( 0, slash );
+        }
+        int colon = authority.lastIndexOf( ':' );
+        boolean hasPort = colon >= 0 && authority.indexOf( ']' ) < colon;
+        String host = hasPort ? authority.substring( 0, colon ) : authority;
+        if ( host.startsWith( "[" ) && host.endsWith( "]" ) )
+        {
+            host = host.substring( 1, host.length() - 1 );
+        }
+        TlsSocketFactory.register( host.length() == 0 ? "localhost" : host, hasPort ? Integer.parseInt( authority
+            .substring( colon + 1 ) ) : DEFAULT_LDAPS_PORT, t.getIdentity(), t.getSocketFactory() );
+    }
+
+
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+
+    /**
+     * Sets the number of entries eachChange and the subtree searches of eachEntryParallel request per page.
+     */
+    public void setPageSize( int pageSize )
+    {
+        if ( pageSize < 1 )
+        {
+            throw new IllegalArgumentException( "pageSize must be positive" );
+        }
+        this.pageSize = pageSize;
+    }
+
+
+    /**
+     * Returns the authenticator used by {@link #authenticate(String, String)}, to configure how user names
+     * are looked up.
+     */
+    public BindAuthenticator getAuthenticator()
+    {
+        BindAuthenticator result = authenticator;
+        if ( result == null )
+        {
+            synchronized ( this )
+            {
+                result = authenticator;
+                if ( result == null )
+                {
+                    result = new BindAuthenticator( this );
+                    authenticator = result;
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Checks the password of a user by binding as the user on a dedicated, pooled connection. The user DN is
+     * looked up with the connection settings of this object, and the lookup is cached.
+     * 
+     * @param user DN of the user, or a user name that is looked up with the filter of {@link #getAuthenticator()}
+     * @param password the password to check
+     * @return true if the directory accepted the credentials
+     * @throws NamingException if the directory could not be asked
+     */
+    public boolean authenticate( String user, String password ) throws NamingException
+    {
+        return getAuthenticator().authenticate( user, password );
+    }
+
+
     /**
      * Search scope ONE (one level)
      */
@@ -147,10 +604,63 @@ public class LDAP
      */
     protected <T> T performWithContext( WithContext<T> action ) throws NamingException
     {
+        return performWithContext( action, null );
+    }
+
+
+    /**
+     * Open an LDAP context with additional environment properties and perform a given task within this context.
+     * Options that affect a single operation are passed here instead of being added to a shared context.
+     *  
+     * @param <T>
+     * @param action
+     * @param options environment properties for this operation only, may be null
+     * @return
+     * @throws NamingException
+     */
+    protected <T> T performWithContext( WithContext<T> action, Map<String, String> options ) throws NamingException
+    {
+        return performWithContext( action, options, null );
+    }
+
+
+    private <T> T performWithContext( WithContext<T> action, Map<String, String> options,
+        QueryProfiler.Operation operation ) throws NamingException
+    {
+        if ( schemaAware && schema == null )
+        {
+            try
+            {
+                getSchema();
+            }
+            catch ( CommunicationException e )
+            {
+                // The operation would fail as well, try again next time
+                throw e;
+            }
+            catch ( NamingException e )
+            {
+                LOG.log( Level.WARNING, "The schema of " + url + " can not be read, values are not converted", e );
+                schema = AttributeSchema.NONE;
+            }
+        }
+        if ( isSecure() )
+        {
+            return performWithSecureContext( action, options, operation );
+        }
         LdapContext ctx = null;
         try
         {
-            ctx = new InitialLdapContext( createEnvironment(), null );
+            Properties env = createEnvironment();
+            if ( options != null )
+            {
+                env.putAll( options );
+            }
+            ctx = openContext( env );
+            if ( operation != null )
+            {
+                operation.connected();
+            }
             return action.perform( ctx );
         }
         catch ( NamingException ne )
@@ -174,6 +684,71 @@ public class LDAP
     }
 
 
+    private <T> T performWithSecureContext( WithContext<T> action, Map<String, String> options,
+        QueryProfiler.Operation operation ) throws NamingException
+    {
+        SecureContextPool pool = getSecurePool();
+        LdapContext ctx = pool.borrow();
+        boolean reusable = true;
+        try
+        {
+            AttributeSchema s = schemaAware ? schema : null;
+            Object current = ctx.getEnvironment().get( AttributeSchema.ENVIRONMENT_KEY );
+            if ( s != null && current == null )
+            {
+                // Opened before the schema was read, or while schema awareness was off
+                ctx.addToEnvironment( AttributeSchema.ENVIRONMENT_KEY, s );
+                if ( s.getBinaryAttributes().length() > 0 )
+                {
+                    ctx.addToEnvironment( "java.naming.ldap.attributes.binary", s.getBinaryAttributes() );
+                }
+            }
+            else if ( s == null && current != null )
+            {
+                // Opened while schema awareness was on
+                ctx.removeFromEnvironment( AttributeSchema.ENVIRONMENT_KEY );
+                ctx.removeFromEnvironment( "java.naming.ldap.attributes.binary" );
+            }
+            if ( options != null )
+            {
+                for ( Map.Entry<String, String> option : options.entrySet() )
+                {
+                    ctx.addToEnvironment( option.getKey(), option.getValue() );
+                }
+            }
+            if ( operation != null )
+            {
+                operation.connected();
+            }
+            return action.perform( ctx );
+        }
+        catch ( NamingException ne )
+        {
+            // A connection that failed to communicate is not used again
+            reusable = !( ne instanceof CommunicationException || ne instanceof ServiceUnavailableException );
+            throw ne;
+        }
+        finally
+        {
+            if ( options != null )
+            {
+                for ( String key : options.keySet() )
+                {
+                    try
+                    {
+                        ctx.removeFromEnvironment( key );
+                    }
+                    catch ( NamingException e )
+                    {
+                        reusable = false;
+                    }
+                }
+            }
+            pool.release( ctx, reusable );
+        }
+    }
+
+
     /**
      * LDAP add operation. Adds a new entry to the directory. The attributes have to be provided as a map.
      * 
@@ -199,6 +774,11 @@ public class LDAP
             }
         };
         performWithContext( action );
+
+        if ( negativeCache != null )
+        {
+            negativeCache.entryAdded( url, dn );
+        }
     }
 
 
@@ -233,6 +813,13 @@ public class LDAP
      */
     public Object read( final String dn ) throws NamingException
     {
+        NegativeCache cache = negativeCache;
+        if ( cache != null && cache.isMissingEntry( url, dn ) )
+        {
+            throw new NameNotFoundException( "Entry " + dn + " does not exist!" );
+        }
+        long generation = cache == null ? 0 : cache.generation();
+
         WithContext<Object> action = new WithContext<Object>()
         {
             public Object perform( LdapContext ctx ) throws NamingException
@@ -240,171 +827,468 @@ public class LDAP
                 return ctx.lookup( dn );
             }
         };
+        try
+        {
+            return performWithContext( action );
+        }
+        catch ( NameNotFoundException nne )
+        {
+            if ( cache != null )
+            {
+                cache.entryMissing( url, dn, generation );
+            }
+            throw nne;
+        }
+    }
+
+
+    /**
+     * Check whether an entry with the given DN exists. The method performs a search to check this, which is more efficient than reading the entry.
+     */
+    public boolean exists( final String dn ) throws NamingException
+    {
+        NegativeCache cache = negativeCache;
+        if ( cache != null && cache.isMissingEntry( url, dn ) )
+        {
+            return false;
+        }
+        long generation = cache == null ? 0 : cache.generation();
+
+        WithContext<Boolean> action = new WithContext<Boolean>()
+        {
+            public Boolean perform( LdapContext ctx ) throws NamingException
+            {
+                SearchControls ctls = new SearchControls();
+                ctls.setSearchScope( SearchControls.OBJECT_SCOPE );
+                ctls.setReturningAttributes( new String[0] );
+                ctls.setReturningObjFlag( false );
+
+                NamingEnumeration<SearchResult> enumeration;
+                try
+                {
+                    enumeration = ctx.search( dn, "(objectClass=*)", ctls );
+                }
+                catch ( NameNotFoundException nne )
+                {
+                    return Boolean.FALSE;
+                }
+                // Closing it lets a pooled connection be reused by other operations
+                enumeration.close();
+                return Boolean.TRUE;
+            }
+
+        };
+        boolean exists = performWithContext( action );
+        if ( !exists && cache != null )
+        {
+            cache.entryMissing( url, dn, generation );
+        }
+        return exists;
+    }
+
+
+    /**
+     * LDAP compare operation.
+     * 
+     * @param dn Distinguished name of the entry.
+     * @param assertion attribute assertion.
+     * @return
+     * @throws NamingException
+     */
+    public boolean compare( final String dn, final Map<String, Object> assertion ) throws NamingException
+    {
+        if ( assertion.size() != 1 )
+        {
+            throw new IllegalArgumentException( "Assertion may only include one attribute" );
+        }
+
+        WithContext<Boolean> action = new WithContext<Boolean>()
+        {
+            public Boolean perform( LdapContext ctx ) throws NamingException
+            {
+                SearchControls ctls = new SearchControls();
+                ctls.setReturningAttributes( new String[0] );
+                ctls.setSearchScope( SearchControls.OBJECT_SCOPE );
+                ctls.setReturningObjFlag( false );
+
+                String attrName = assertion.keySet().iterator().next();
+                String filter = "(" + attrName + "={0})";
+                Object value = assertion.get( attrName );
+
+                NamingEnumeration<SearchResult> enumeration = ctx.search( dn, filter, new Object[]
+                    { value }, ctls );
+                try
+                {
+                    return enumeration.hasMore();
+                }
+                finally
+                {
+                    enumeration.close();
+                }
+            }
+        };
         return performWithContext( action );
     }
 
 
     /**
-     * Check whether an entry with the given DN exists. The method performs a search to check this, which is more efficient than reading the entry.
+     * LDAP modify DN operation.
+     * 
+     * @param dn
+     * @param newRdn
+     * @param deleteOldRdn
+     * @param newSuperior
+     * @throws NamingException
+     */
+    public void modifyDn( String dn, String newRdn, boolean deleteOldRdn, String newSuperior )
+        throws NamingException
+    {
+        modifyDn( DistinguishedName.valueOf( dn ), new Rdn( newRdn ), deleteOldRdn, DistinguishedName
+            .valueOf( newSuperior ) );
+    }
+
+
+    /**
+     * LDAP modify DN operation, with names that are already parsed.
+     * 
+     * @param dn
+     * @param newRdn
+     * @param deleteOldRdn
+     * @param newSuperior
+     * @throws NamingException
+     */
+    public void modifyDn( final DistinguishedName dn, Rdn newRdn, boolean deleteOldRdn,
+        DistinguishedName newSuperior ) throws NamingException
+    {
+        final DistinguishedName target = newSuperior.getChild( newRdn );
+        WithContext<Object> action = new WithContext<Object>()
+        {
+            public Object perform( LdapContext ctx ) throws NamingException
+            {
+                ctx.rename( dn.toLdapName(), target.toLdapName() );
+
+                return null;
+            }
+        };
+        performWithContext( action, Collections.singletonMap( "java.naming.ldap.deleteRDN", Boolean.valueOf(
+            deleteOldRdn ).toString() ) );
+
+        if ( negativeCache != null )
+        {
+            negativeCache.entryAdded( url, target.toString() );
+        }
+    }
+
+
+    // search
+
+    // modify
+
+    // modify DN
+
+    // compare
+
+    public void eachEntry( String filter, String base, SearchScope scope, Closure closure ) throws NamingException
+    {
+
+        Search search = new Search();
+        search.setFilter( filter );
+        search.setBase( base );
+        search.setScope( scope );
+
+        eachEntry( search, closure );
+    }
+
+
+    public void eachEntry( Map<String, Object> searchParams, Closure closure ) throws NamingException
+    {
+        Search search = new Search( searchParams );
+        eachEntry( search, closure );
+    }
+
+
+    public void eachEntry( Search search, final Closure closure ) throws NamingException
+    {
+        eachEntry( search, new EntryHandler()
+        {
+            public void handle( Object entry )
+            {
+                closure.call( entry );
+            }
+        } );
+    }
+
+
+    /**
+     * Receives the entries of a search, one at a time.
+     */
+    interface EntryHandler
+    {
+        void handle( Object entry ) throws NamingException;
+    }
+
+
+    private void eachEntry( Search search, EntryHandler handler ) throws NamingException
+    {
+        eachEntry( search, 0, handler );
+    }
+
+
+    /**
+     * @param pageSize if positive, results are requested in pages of this size with the paged results
+     *        control. Servers that do not support the control return all results at once.
+     */
+    void eachEntry( Search search, final int pageSize, final EntryHandler handler ) throws NamingException
+    {
+        final Search s = new Search( search );
+        QueryProfiler p = profiler;
+        final QueryProfiler.Operation operation = p == null ? null : p.start( s );
+        final long[] count = new long[1];
+        WithContext<Object> action = new WithContext<Object>()
+        {
+            public Object perform( LdapContext ctx ) throws NamingException
+            {
+                SearchControls ctls = new SearchControls();
+                ctls.setSearchScope( s.getScope().getJndiValue() );
+                ctls.setReturningAttributes( s.getAttrs() );
+                ctls.setReturningObjFlag( true );
+
+                byte[] cookie = null;
+                try
+                {
+                    do
+                    {
+                        if ( pageSize > 0 )
+                        {
+                            ctx.setRequestControls( new Control[]
+                                { pagedResultsControl( pageSize, cookie ) } );
+                        }
+                        NamingEnumeration<SearchResult> enm = ctx.search( s.getBase(), s.getFilter(), s
+                            .getFilterArgs(), ctls );
+                        try
+                        {
+                            while ( enm.hasMore() )
+                            {
+                                SearchResult sr = enm.next();
+                                Object obj = sr.getObject();
+                                count[0]++;
+                                handler.handle( obj );
+                            }
+                        }
+                        finally
+                        {
+                            enm.close();
+                        }
+                        cookie = pageSize > 0 ? pagedResultsCookie( ctx.getResponseControls() ) : null;
+                    }
+                    while ( cookie != null );
+                }
+                finally
+                {
+                    if ( pageSize > 0 )
+                    {
+                        // The context may be reused by other operations
+                        ctx.setRequestControls( null );
+                    }
+                }
+                return null;
+            }
+        };
+        try
+        {
+            performWithContext( action, null, operation );
+        }
+        catch ( NamingException e )
+        {
+            failed( operation, e );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            failed( operation, e );
+            throw e;
+        }
+        if ( operation != null )
+        {
+            operation.finished( count[0] );
+        }
+    }
+
+
+    static Control pagedResultsControl( int pageSize, byte[] cookie ) throws NamingException
+    {
+        try
+        {
+            return new PagedResultsControl( pageSize, cookie, Control.NONCRITICAL );
+        }
+        catch ( IOException e )
+        {
+            NamingException ne = new NamingException( "Could not encode paged results control" );
+            ne.setRootCause( e );
+            throw ne;
+        }
+    }
+
+
+    /**
+     * @return the cookie for the next page, or null if this was the last page
      */
-    public boolean exists( final String dn ) throws NamingException
+    static byte[] pagedResultsCookie( Control[] controls )
     {
-        WithContext<Boolean> action = new WithContext<Boolean>()
+        if ( controls != null )
         {
-            public Boolean perform( LdapContext ctx ) throws NamingException
+            for ( Control control : controls )
             {
-                SearchControls ctls = new SearchControls();
-                ctls.setSearchScope( SearchControls.OBJECT_SCOPE );
-                ctls.setReturningAttributes( new String[0] );
-                ctls.setReturningObjFlag( false );
-
-                try
-                {
-                    ctx.search( dn, "(objectClass=*)", ctls );
-                    return Boolean.TRUE;
-                }
-                catch ( NameNotFoundException nne )
+                if ( control instanceof PagedResultsResponseControl )
                 {
+                    byte[] cookie = ( ( PagedResultsResponseControl ) control ).getCookie();
+                    return cookie == null || cookie.length == 0 ? null : cookie;
                 }
-                return Boolean.FALSE;
             }
-
-        };
-        return performWithContext( action );
+        }
+        return null;
     }
 
 
     /**
-     * LDAP compare operation.
+     * Passes the entries that were added or modified since the previous call with the same state to a
+     * closure, and the DNs of entries that were deleted (or no longer match the search) to another. The
+     * first call passes all entries. Results are fetched in pages of {@link #getPageSize()} entries.
+     * <p>
+     * Changes are found by the watermark attribute of the state, see {@link SyncState}. Deletions are
+     * found every deletionCheckEvery calls, by listing the DNs of all matching entries. The state is
+     * updated when all entries have been passed on; if the closure or the search fails, the next call
+     * passes the same changes again.
      * 
-     * @param dn Distinguished name of the entry.
-     * @param assertion attribute assertion.
-     * @return
+     * @param search the search whose results are tracked
+     * @param state the state of the previous call, updated by this call
+     * @param changed called with each added or modified entry
+     * @param deleted called with the normalized DN of each deleted entry, may be null
      * @throws NamingException
      */
-    public boolean compare( final String dn, final Map<String, Object> assertion ) throws NamingException
+    public void eachChange( Search search, SyncState state, Closure changed, Closure deleted )
+        throws NamingException
     {
-        if ( assertion.size() != 1 )
+        synchronized ( state )
         {
-            throw new IllegalArgumentException( "Assertion may only include one attribute" );
+            new ChangeTracker( this, search, state, pageSize, changed, deleted ).run();
         }
+    }
 
-        WithContext<Boolean> action = new WithContext<Boolean>()
-        {
-            public Boolean perform( LdapContext ctx ) throws NamingException
-            {
-                SearchControls ctls = new SearchControls();
-                ctls.setReturningAttributes( new String[0] );
-                ctls.setSearchScope( SearchControls.OBJECT_SCOPE );
-                ctls.setReturningObjFlag( false );
-
-                String attrName = assertion.keySet().iterator().next();
-                String filter = "(" + attrName + "={0})";
-                Object value = assertion.get( attrName );
-
-                NamingEnumeration<SearchResult> enumeration = ctx.search( dn, filter, new Object[]
-                    { value }, ctls );
 
-                return enumeration.hasMore();
-            }
-        };
-        return performWithContext( action );
+    public void eachChange( Search search, SyncState state, Closure changed ) throws NamingException
+    {
+        eachChange( search, state, changed, null );
     }
 
 
     /**
-     * LDAP modify DN operation.
+     * Iterates over the entries of a search in the order of the given attributes. Up to
+     * {@link #getSortBufferSize()} entries are sorted in memory; larger results are sorted in runs that
+     * are written to temporary files and merged, so the memory used does not grow with the result.
      * 
-     * @param dn
-     * @param newRdn
-     * @param deleteOldRdn
-     * @param newSuperior
+     * @param search the search to perform
+     * @param sortBy attribute names, most significant first
+     * @param dedup if true, entries with the same DN are passed to the closure only once
+     * @param closure called for each entry, in order
      * @throws NamingException
      */
-    public void modifyDn( final String dn, final String newRdn, final boolean deleteOldRdn, final String newSuperior )
+    public void eachEntrySorted( Search search, List<String> sortBy, boolean dedup, Closure closure )
         throws NamingException
     {
-        WithContext<Object> action = new WithContext<Object>()
+        final ExternalSorter sorter = new ExternalSorter( sortBy, dedup, sortBufferSize, null );
+        try
         {
-            public Object perform( LdapContext ctx ) throws NamingException
+            eachEntry( search, new EntryHandler()
             {
-                LdapName source = new LdapName( dn );
-                LdapName target = new LdapName( newSuperior );
-
-                target.add( newRdn );
-                ctx.addToEnvironment( "java.naming.ldap.deleteRDN", Boolean.valueOf( deleteOldRdn ).toString() );
-                ctx.rename( source, target );
-
-                return null;
-            }
-        };
-        performWithContext( action );
+                public void handle( Object entry ) throws NamingException
+                {
+                    try
+                    {
+                        sorter.add( entry );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw sortFailed( e );
+                    }
+                }
+            } );
+            sorter.each( closure );
+        }
+        catch ( IOException e )
+        {
+            throw sortFailed( e );
+        }
+        finally
+        {
+            sorter.close();
+        }
     }
 
 
-    // search
-
-    // modify
-
-    // modify DN
-
-    // compare
-
-    public void eachEntry( String filter, String base, SearchScope scope, Closure closure ) throws NamingException
+    public void eachEntrySorted( Search search, List<String> sortBy, Closure closure ) throws NamingException
     {
+        eachEntrySorted( search, sortBy, false, closure );
+    }
 
-        Search search = new Search();
-        search.setFilter( filter );
-        search.setBase( base );
-        search.setScope( scope );
 
-        eachEntry( search, closure );
+    private static NamingException sortFailed( IOException e )
+    {
+        NamingException ne = new NamingException( "Sorting search result failed" );
+        ne.setRootCause( e );
+        return ne;
     }
 
 
-    public void eachEntry( Map<String, Object> searchParams, Closure closure ) throws NamingException
+    public void eachEntry( String filter, Closure closure ) throws NamingException
     {
-        Search search = new Search( searchParams );
-        eachEntry( search, closure );
+        eachEntry( filter, "", SearchScope.SUB, closure );
     }
 
 
-    public void eachEntry( Search search, Closure closure ) throws NamingException
+    /**
+     * Iterates over all entries in the subtree below the search base, using several threads and connections.
+     * The closure is called concurrently from the worker threads, in no particular order.
+     * 
+     * @param search search with a DN (relative to the connection URL) as base
+     * @param parallelism number of worker threads
+     * @param closure called for each matching entry
+     * @throws NamingException
+     */
+    public void eachEntryParallel( Search search, int parallelism, Closure closure ) throws NamingException
     {
+        eachEntryParallel( search, parallelism, false, closure );
+    }
 
-        LdapContext ctx = null;
-        try
-        {
-            ctx = new InitialLdapContext( createEnvironment(), null );
-
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope( search.getScope().getJndiValue() );
-            ctls.setReturningAttributes( search.getAttrs() );
-            ctls.setReturningObjFlag( true );
 
-            NamingEnumeration<SearchResult> enm = ctx.search( search.getBase(), search.getFilter(), search
-                .getFilterArgs(), ctls );
-            while ( enm.hasMore() )
-            {
-                SearchResult sr = enm.next();
-                Object obj = sr.getObject();
-                closure.call( obj );
-            }
-        }
-        catch ( NamingException ne )
-        {
-            throw ne;
-        }
-        finally
+    /**
+     * Iterates over all entries in the subtree below the search base, using several threads and connections.
+     * Searches with another scope than SUB, or a parallelism below 2, are performed by {@link #eachEntry(Search, Closure)}.
+     * 
+     * @param search search with a DN (relative to the connection URL) as base
+     * @param parallelism number of worker threads
+     * @param serialized if true, only one thread at a time calls the closure
+     * @param closure called for each matching entry
+     * @throws NamingException
+     */
+    public void eachEntryParallel( Search search, int parallelism, boolean serialized, Closure closure )
+        throws NamingException
+    {
+        if ( search.getScope() != SearchScope.SUB || parallelism < 2 )
         {
-            ctx.close();
+            eachEntry( search, closure );
+            return;
         }
+        new ParallelTraversal( this, new Search( search ), parallelism, DEFAULT_SPLIT_DEPTH, DEFAULT_MAX_SPLIT_CHILDREN,
+            serialized, closure ).run();
     }
 
 
-    public void eachEntry( String filter, Closure closure ) throws NamingException
+    public void eachEntryParallel( String filter, int parallelism, Closure closure ) throws NamingException
     {
-        eachEntry( filter, "", SearchScope.SUB, closure );
+        Search search = new Search();
+        search.setFilter( filter );
+        eachEntryParallel( search, parallelism, closure );
     }
 
 
@@ -420,21 +1304,25 @@ public class LDAP
             ModificationItem item = new ModificationItem( modType.getJndiValue(), attr );
             mods.add( item );
         }
-        ModificationItem[] modItems = mods.toArray( new ModificationItem[mods.size()] );
+        modify( dn, mods.toArray( new ModificationItem[mods.size()] ) );
+    }
 
-        LdapContext ctx = null;
-        try
-        {
-            ctx = new InitialLdapContext( createEnvironment(), null );
-            ctx.modifyAttributes( dn, modItems );
-        }
-        catch ( NamingException ne )
+
+    private void modify( final String dn, final ModificationItem[] modItems ) throws NamingException
+    {
+        WithContext<Object> action = new WithContext<Object>()
         {
-            throw ne;
-        }
-        finally
+            public Object perform( LdapContext ctx ) throws NamingException
+            {
+                ctx.modifyAttributes( dn, modItems );
+                return null;
+            }
+        };
+        performWithContext( action );
+
+        if ( negativeCache != null )
         {
-            ctx.close();
+            negativeCache.entryModified();
         }
     }
 
@@ -479,22 +1367,7 @@ public class LDAP
                 mods.add( item );
             }
         }
-        ModificationItem[] modItems = mods.toArray( new ModificationItem[mods.size()] );
-
-        LdapContext ctx = null;
-        try
-        {
-            ctx = new InitialLdapContext( createEnvironment(), null );
-            ctx.modifyAttributes( dn, modItems );
-        }
-        catch ( NamingException ne )
-        {
-            throw ne;
-        }
-        finally
-        {
-            ctx.close();
-        }
+        modify( dn, mods.toArray( new ModificationItem[mods.size()] ) );
     }
 
 
@@ -507,46 +1380,186 @@ public class LDAP
 
     public List<Object> search( Search search ) throws NamingException
     {
+        return search( search, 0 );
+    }
 
-        LdapContext ctx = null;
-        List<Object> result = new ArrayList<Object>();
-        try
+
+    /**
+     * Returns at most max entries. The server is asked for no more than max entries and the
+     * result is closed as soon as they have been read.
+     * 
+     * @param search the search to perform
+     * @param max maximum number of entries to return
+     * @return the first entries in server order
+     * @throws NamingException
+     */
+    public List<Object> searchFirst( Search search, int max ) throws NamingException
+    {
+        if ( max <= 0 )
         {
-            Properties env = createEnvironment();
-            ctx = new InitialLdapContext( env, null );
+            throw new IllegalArgumentException( "max must be positive" );
+        }
+        return search( search, max );
+    }
+
+
+    public List<Object> searchFirst( Map<String, Object> searchParams, int max ) throws NamingException
+    {
+        Search search = new Search( searchParams );
+        return searchFirst( search, max );
+    }
+
 
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope( search.getScope().getJndiValue() );
-            ctls.setReturningAttributes( search.getAttrs() );
-            ctls.setReturningObjFlag( true );
+    /**
+     * Performs a search and reads at most limit entries (0 means no limit).
+     */
+    private List<Object> search( Search search, final int limit ) throws NamingException
+    {
+        final Search s = new Search( search );
+        SearchCoalescer coalescer = searchCoalescer;
+        if ( coalescer != null && s.isCoalesce() )
+        {
+            return coalescer.execute( coalescingKey( s, limit ), new Callable<List<Object>>()
+            {
+                public List<Object> call() throws NamingException
+                {
+                    return performSearch( s, limit );
+                }
+            } );
+        }
+        return performSearch( s, limit );
+    }
 
-            NamingEnumeration<SearchResult> enm = ctx.search( search.getBase(), search.getFilter(), search
-                .getFilterArgs(), ctls );
 
-            while ( enm.hasMoreElements() )
+    private List<Object> performSearch( final Search s, final int limit ) throws NamingException
+    {
+        QueryProfiler p = profiler;
+        QueryProfiler.Operation operation = p == null ? null : p.start( s );
+        WithContext<List<Object>> action = new WithContext<List<Object>>()
+        {
+            public List<Object> perform( LdapContext ctx ) throws NamingException
             {
-                SearchResult sr = enm.nextElement();
-                result.add( sr.getObject() );
+                SearchControls ctls = new SearchControls();
+                ctls.setSearchScope( s.getScope().getJndiValue() );
+                ctls.setReturningAttributes( s.getAttrs() );
+                ctls.setReturningObjFlag( true );
+                ctls.setCountLimit( limit );
+
+                List<Object> result = new ArrayList<Object>();
+                NamingEnumeration<SearchResult> enm = ctx.search( s.getBase(), s.getFilter(), s.getFilterArgs(), ctls );
+                try
+                {
+                    while ( ( limit == 0 || result.size() < limit ) && enm.hasMore() )
+                    {
+                        SearchResult sr = enm.next();
+                        result.add( sr.getObject() );
+                    }
+                }
+                catch ( SizeLimitExceededException slee )
+                {
+                    if ( limit == 0 )
+                    {
+                        // The server limit was hit, not ours: the result is incomplete
+                        throw slee;
+                    }
+                    // More entries than requested, the ones we got are enough
+                }
+                finally
+                {
+                    enm.close();
+                }
+                return result;
             }
+        };
+        List<Object> result;
+        try
+        {
+            result = performWithContext( action, null, operation );
         }
-        catch ( NamingException ne )
+        catch ( NamingException e )
         {
-            throw ne;
+            failed( operation, e );
+            throw e;
         }
-        finally
+        catch ( RuntimeException e )
         {
-            if (ctx != null) {
-                ctx.close();
-            }
+            failed( operation, e );
+            throw e;
+        }
+        if ( operation != null )
+        {
+            operation.finished( result.size() );
         }
         return result;
     }
+
+
+    private static void failed( QueryProfiler.Operation operation, Exception e )
+    {
+        if ( operation != null )
+        {
+            operation.failed( e );
+        }
+    }
     
+
+    /**
+     * Base and filter are normalized the same way as for the negative cache. The password is only part of
+     * the key as a digest.
+     */
+    private String coalescingKey( Search s, int limit )
+    {
+        StringBuilder buf = new StringBuilder( NegativeCache.searchKey( url, s, schemaAware ? schema : null ) );
+        buf.append( '\u0000' ).append( bindIdentity );
+        buf.append( '\u0000' ).append( Arrays.toString( s.getAttrs() ) );
+        buf.append( '\u0000' ).append( limit );
+        return buf.toString();
+    }
+
+
+    private static String digest( String password )
+    {
+        if ( password == null )
+        {
+            return "";
+        }
+        try
+        {
+            return Util.toHex( MessageDigest.getInstance( "SHA-256" ).digest( password.getBytes( "UTF-8" ) ) );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( "SHA-256 is not available", e );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 is not available", e );
+        }
+    }
+
+
+    /**
+     * Returns the only entry matching the search, or null if there is none. At most two entries are
+     * requested from the server, which is enough to tell that the result is not unique.
+     * 
+     * @throws NamingException if more than one entry matches
+     */
     public Object searchUnique( Search search ) throws NamingException
     {
-        List<Object> results = this.search( search );
+        NegativeCache cache = negativeCache;
+        if ( cache != null && cache.isMissingSearch( url, search, schemaAware ? schema : null ) )
+        {
+            return null;
+        }
+        long generation = cache == null ? 0 : cache.generation();
+
+        List<Object> results = this.search( search, 2 );
         switch (results.size()) {
             case 0:
+                if ( cache != null )
+                {
+                    cache.searchMissing( url, search, schemaAware ? schema : null, generation );
+                }
                 return null;
             case 1:
                 return results.get( 0 );
@@ -565,31 +1578,10 @@ public class LDAP
 
     public List<Object> search( String filter, String base, SearchScope scope ) throws NamingException
     {
-        LdapContext ctx = null;
-        List<Object> result = new ArrayList<Object>();
-        try
-        {
-            ctx = new InitialLdapContext( createEnvironment(), null );
-
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope( scope.getJndiValue() );
-            ctls.setReturningObjFlag( true );
-
-            NamingEnumeration<SearchResult> enm = ctx.search( base, filter, ctls );
-            while ( enm.hasMoreElements() )
-            {
-                SearchResult sr = enm.nextElement();
-                result.add( sr.getObject() );
-            }
-        }
-        catch ( NamingException ne )
-        {
-            throw ne;
-        }
-        finally
-        {
-            ctx.close();
-        }
-        return result;
+        Search search = new Search();
+        search.setFilter( filter );
+        search.setBase( base );
+        search.setScope( scope );
+        return search( search );
     }
-}
\ No newline at end of file
+}
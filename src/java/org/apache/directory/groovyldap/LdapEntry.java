@@ -0,0 +1,256 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.InvalidNameException;
+
+
+/**
+ * An entry returned by read and search operations. It is a map of lower case attribute names to values,
+ * with the DN string stored under the key "dn". The parsed DN is available from
+ * {@link #getDistinguishedName()}.
+ * <p>
+ * Entries read with a schema-aware LDAP object convert their values by attribute syntax when an attribute
+ * is first read. Iterating over the entry, or serializing it, converts all remaining values.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class LdapEntry extends HashMap<String, Object>
+{
+    private static final long serialVersionUID = 1L;
+
+    private transient volatile DistinguishedName distinguishedName;
+
+    private transient AttributeSchema schema;
+
+    /** Attributes whose values have not been converted yet, null when there are none. */
+    private transient volatile Set<String> unconverted;
+
+
+    public LdapEntry()
+    {
+        super();
+    }
+
+
+    public LdapEntry( String dn )
+    {
+        super();
+        put( "dn", dn );
+    }
+
+
+    /**
+     * Creates a copy of an entry. Lists, dates and byte arrays among the values are copied too, so changes to
+     * the copy are not seen in the original.
+     */
+    public LdapEntry( LdapEntry other )
+    {
+        super( other.size() );
+        for ( Map.Entry<String, Object> e : other.entrySet() )
+        {
+            super.put( e.getKey(), copy( e.getValue() ) );
+        }
+        distinguishedName = other.distinguishedName;
+    }
+
+
+    /**
+     * Copies a list of search results. Entries are copied with {@link #LdapEntry(LdapEntry)}, other objects
+     * are shared.
+     */
+    static List<Object> copyAll( List<?> entries )
+    {
+        List<Object> copy = new ArrayList<Object>( entries.size() );
+        for ( Object entry : entries )
+        {
+            copy.add( entry instanceof LdapEntry ? new LdapEntry( ( LdapEntry ) entry ) : entry );
+        }
+        return copy;
+    }
+
+
+    /**
+     * @return the parsed DN of this entry, or null if the entry has no DN
+     */
+    public DistinguishedName getDistinguishedName()
+    {
+        DistinguishedName result = distinguishedName;
+        Object dn = get( "dn" );
+        if ( dn == null )
+        {
+            return null;
+        }
+        if ( result == null || !dn.toString().equals( result.toString() ) )
+        {
+            try
+            {
+                result = DistinguishedName.valueOf( dn.toString() );
+            }
+            catch ( InvalidNameException e )
+            {
+                throw new IllegalStateException( "Entry has an invalid DN: " + dn, e );
+            }
+            distinguishedName = result;
+        }
+        return result;
+    }
+
+
+    /**
+     * Sets the schema used to convert the values of this entry. Called when the entry is complete.
+     */
+    public void setSchema( AttributeSchema schema )
+    {
+        Set<String> pending = new HashSet<String>();
+        for ( String attribute : keySet() )
+        {
+            if ( schema.isConverted( attribute ) )
+            {
+                pending.add( attribute );
+            }
+        }
+        synchronized ( this )
+        {
+            this.schema = schema;
+            this.unconverted = pending.isEmpty() ? null : pending;
+        }
+    }
+
+
+    @Override
+    public Object get( Object key )
+    {
+        if ( unconverted == null )
+        {
+            return super.get( key );
+        }
+        synchronized ( this )
+        {
+            Object value = super.get( key );
+            if ( unconverted != null && unconverted.remove( key ) )
+            {
+                value = schema.convert( ( String ) key, value );
+                super.put( ( String ) key, value );
+                if ( unconverted.isEmpty() )
+                {
+                    unconverted = null;
+                }
+            }
+            return value;
+        }
+    }
+
+
+    @Override
+    public Object put( String key, Object value )
+    {
+        if ( unconverted != null )
+        {
+            synchronized ( this )
+            {
+                if ( unconverted != null )
+                {
+                    unconverted.remove( key );
+                }
+                return super.put( key, value );
+            }
+        }
+        return super.put( key, value );
+    }
+
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        convertAll();
+        return super.entrySet();
+    }
+
+
+    @Override
+    public Collection<Object> values()
+    {
+        convertAll();
+        return super.values();
+    }
+
+
+    private void convertAll()
+    {
+        if ( unconverted == null )
+        {
+            return;
+        }
+        synchronized ( this )
+        {
+            if ( unconverted != null )
+            {
+                for ( String key : unconverted )
+                {
+                    super.put( key, schema.convert( key, super.get( key ) ) );
+                }
+                unconverted = null;
+            }
+        }
+    }
+
+
+    private static Object copy( Object value )
+    {
+        if ( value instanceof List<?> )
+        {
+            List<Object> result = new ArrayList<Object>( ( ( List<?> ) value ).size() );
+            for ( Object o : ( List<?> ) value )
+            {
+                result.add( copy( o ) );
+            }
+            return result;
+        }
+        else if ( value instanceof Date )
+        {
+            return ( ( Date ) value ).clone();
+        }
+        else if ( value instanceof byte[] )
+        {
+            return ( ( byte[] ) value ).clone();
+        }
+        return value;
+    }
+
+
+    private Object writeReplace()
+    {
+        convertAll();
+        return this;
+    }
+}
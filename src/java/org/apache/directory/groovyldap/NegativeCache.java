@@ -0,0 +1,233 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InvalidNameException;
+
+import org.apache.directory.groovyldap.util.ExpiringCache;
+
+
+/**
+ * Remembers for a short time that an entry does not exist, or that a unique search found nothing, so
+ * repeated lookups of the same missing name do not reach the directory.
+ * <p>
+ * Misses are keyed by URL and normalized DN (for exists and read) or by URL, base, scope, filter and filter
+ * arguments (for searchUnique). An LDAP object invalidates the affected keys when it adds, modifies or
+ * renames entries; changes made by other clients become visible when the TTL has passed. A cache may be
+ * shared by several LDAP objects that connect to the same directory with the same access rights.
+ * <p>
+ * A lookup takes a {@link #generation()} before it asks the directory, and its miss is only remembered if
+ * no invalidation happened in the meantime. Otherwise an entry added while the lookup was running could
+ * be reported as missing for the whole TTL.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class NegativeCache
+{
+    public static final long DEFAULT_TTL_MILLIS = 30000L;
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final ExpiringCache<String, Boolean> entryMisses;
+
+    private final ExpiringCache<String, Boolean> searchMisses;
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /** Orders invalidations and the storing of misses, lookups do not take it. */
+    private final Object lock = new Object();
+
+
+    public NegativeCache()
+    {
+        this( DEFAULT_TTL_MILLIS, DEFAULT_MAX_SIZE );
+    }
+
+
+    /**
+     * @param ttlMillis how long a miss is remembered
+     * @param maxSize maximum number of remembered entry misses, and of remembered search misses
+     */
+    public NegativeCache( long ttlMillis, int maxSize )
+    {
+        this.entryMisses = new ExpiringCache<String, Boolean>( ttlMillis, maxSize );
+        this.searchMisses = new ExpiringCache<String, Boolean>( ttlMillis, maxSize );
+    }
+
+
+    boolean isMissingEntry( String url, String dn )
+    {
+        return entryMisses.get( entryKey( url, dn ) ) != null;
+    }
+
+
+    /**
+     * @return the number of invalidations so far, to be passed to entryMissing or searchMissing
+     */
+    long generation()
+    {
+        return invalidations.get();
+    }
+
+
+    /**
+     * @param generation the generation taken before the directory was asked
+     */
+    void entryMissing( String url, String dn, long generation )
+    {
+        String key = entryKey( url, dn );
+        synchronized ( lock )
+        {
+            if ( invalidations.get() == generation )
+            {
+                entryMisses.put( key, Boolean.TRUE );
+            }
+        }
+    }
+
+
+    boolean isMissingSearch( String url, Search search, AttributeSchema schema )
+    {
+        return searchMisses.get( searchKey( url, search, schema ) ) != null;
+    }
+
+
+    /**
+     * @param generation the generation taken before the directory was asked
+     */
+    void searchMissing( String url, Search search, AttributeSchema schema, long generation )
+    {
+        String key = searchKey( url, search, schema );
+        synchronized ( lock )
+        {
+            if ( invalidations.get() == generation )
+            {
+                searchMisses.put( key, Boolean.TRUE );
+            }
+        }
+    }
+
+
+    /**
+     * Forgets misses that may no longer be true after an entry was created.
+     */
+    void entryAdded( String url, String dn )
+    {
+        String key = entryKey( url, dn );
+        synchronized ( lock )
+        {
+            invalidations.incrementAndGet();
+            entryMisses.remove( key );
+            searchMisses.clear();
+        }
+    }
+
+
+    /**
+     * Forgets search misses that may no longer be true after an entry was modified.
+     */
+    void entryModified()
+    {
+        synchronized ( lock )
+        {
+            invalidations.incrementAndGet();
+            searchMisses.clear();
+        }
+    }
+
+
+    public void clear()
+    {
+        synchronized ( lock )
+        {
+            invalidations.incrementAndGet();
+            entryMisses.clear();
+            searchMisses.clear();
+        }
+    }
+
+
+    /**
+     * @return counters of the cache: hits, misses (lookups that went to the directory), evictions,
+     *         invalidations and current size
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put( "hits", entryMisses.getHits() + searchMisses.getHits() );
+        stats.put( "misses", entryMisses.getMisses() + searchMisses.getMisses() );
+        stats.put( "evictions", entryMisses.getEvictions() + searchMisses.getEvictions() );
+        stats.put( "invalidations", invalidations.get() );
+        stats.put( "size", Long.valueOf( entryMisses.size() + searchMisses.size() ) );
+        return stats;
+    }
+
+
+    private static String entryKey( String url, String dn )
+    {
+        return url + '\u0000' + normalize( dn );
+    }
+
+
+    /**
+     * With a schema, values of case-insensitive attributes are folded to lower case, so that searches
+     * differing only in their case share a key.
+     */
+    static String searchKey( String url, Search search, AttributeSchema schema )
+    {
+        StringBuilder buf = new StringBuilder( url );
+        buf.append( '\u0000' ).append( normalize( search.getBase() ) );
+        buf.append( '\u0000' ).append( search.getScope() );
+        if ( schema != null )
+        {
+            buf.append( '\u0000' ).append(
+                schema.normalizeFilter( search.getFilter().trim(), search.getFilterArgs() ) );
+            return buf.toString();
+        }
+        buf.append( '\u0000' ).append( search.getFilter().trim() );
+        if ( search.getFilterArgs() != null )
+        {
+            buf.append( '\u0000' ).append( Arrays.deepToString( search.getFilterArgs() ) );
+        }
+        return buf.toString();
+    }
+
+
+    private static String normalize( String dn )
+    {
+        try
+        {
+            return DistinguishedName.valueOf( dn ).getNormalizedName();
+        }
+        catch ( InvalidNameException e )
+        {
+            // Not a plain DN (for example an LDAP URL), use it as it is
+            return dn;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import groovy.lang.Closure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+
+/**
+ * Walks a subtree with several threads. The upper levels of the tree are split into one task per entry
+ * (a ONE level search lists the children), and every subtree below the split depth is handed to a worker
+ * as a single paged SUB search. An entry with more children than the split limit is not split either: its
+ * subtree is also read with one SUB search instead of a BASE and a ONE level search per child. Idle workers
+ * take the next pending subtree from the shared queue, so a few large subtrees do not leave the other
+ * connections waiting.
+ * <p>
+ * Plain connections of the workers are taken from the JNDI connection pool; secure connections from the
+ * pool of the LDAP object.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+class ParallelTraversal
+{
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final LDAP ldap;
+
+    private final Search search;
+
+    private final int parallelism;
+
+    private final int splitDepth;
+
+    private final int maxSplitChildren;
+
+    private final boolean serialized;
+
+    private final Closure closure;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    private final Object lock = new Object();
+
+    private ExecutorService executor;
+
+
+    ParallelTraversal( LDAP ldap, Search search, int parallelism, int splitDepth, int maxSplitChildren,
+        boolean serialized, Closure closure )
+    {
+        this.ldap = ldap;
+        this.search = search;
+        this.parallelism = parallelism;
+        this.splitDepth = splitDepth;
+        this.maxSplitChildren = maxSplitChildren;
+        this.serialized = serialized;
+        this.closure = closure;
+    }
+
+
+    /**
+     * Runs the traversal and waits until all subtrees are processed. The first failure of any worker
+     * stops the traversal and is rethrown to the caller.
+     */
+    void run() throws NamingException
+    {
+        executor = Executors.newFixedThreadPool( parallelism, new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "ldap-traversal-" + THREAD_COUNT.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+        try
+        {
+            schedule( search.getBase(), 0 );
+            synchronized ( lock )
+            {
+                while ( pending.get() > 0 && failure.get() == null )
+                {
+                    lock.wait();
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet( null, e );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        Throwable t = failure.get();
+        if ( t instanceof NamingException )
+        {
+            throw ( NamingException ) t;
+        }
+        else if ( t instanceof RuntimeException )
+        {
+            throw ( RuntimeException ) t;
+        }
+        else if ( t instanceof Error )
+        {
+            throw ( Error ) t;
+        }
+        else if ( t != null )
+        {
+            NamingException ne = new NamingException( "Parallel traversal of " + search.getBase() + " failed" );
+            ne.setRootCause( t );
+            throw ne;
+        }
+    }
+
+
+    private void schedule( final String dn, final int depth )
+    {
+        pending.incrementAndGet();
+        executor.execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if ( failure.get() == null )
+                    {
+                        visit( dn, depth );
+                    }
+                }
+                catch ( Throwable t )
+                {
+                    failure.compareAndSet( null, t );
+                }
+                finally
+                {
+                    if ( pending.decrementAndGet() == 0 || failure.get() != null )
+                    {
+                        synchronized ( lock )
+                        {
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            }
+        } );
+    }
+
+
+    private void visit( final String dn, final int depth ) throws NamingException
+    {
+        ldap.performWithContext( new WithContext<Object>()
+        {
+            public Object perform( LdapContext ctx ) throws NamingException
+            {
+                if ( depth >= splitDepth )
+                {
+                    emit( ctx, dn, SearchScope.SUB );
+                    return null;
+                }
+
+                List<String> children = listChildren( ctx, dn );
+                if ( children == null )
+                {
+                    emit( ctx, dn, SearchScope.SUB );
+                    return null;
+                }
+
+                emit( ctx, dn, SearchScope.BASE );
+                for ( String child : children )
+                {
+                    schedule( child, depth + 1 );
+                }
+                return null;
+            }
+        }, ldap.isSecure() ? null : LDAP.POOLED_CONNECTIONS );
+    }
+
+
+    /**
+     * Lists the children of an entry, by their names relative to the context.
+     *
+     * @return the names, or null if the entry has more than maxSplitChildren children or a child can not
+     *         be named relative to the context (for example a dereferenced alias outside of it)
+     */
+    private List<String> listChildren( LdapContext ctx, String dn ) throws NamingException
+    {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope( SearchControls.ONELEVEL_SCOPE );
+        ctls.setReturningAttributes( new String[0] );
+        ctls.setReturningObjFlag( false );
+        ctls.setCountLimit( maxSplitChildren + 1 );
+
+        LdapName context = new LdapName( ctx.getNameInNamespace() );
+        List<String> result = new ArrayList<String>();
+        NamingEnumeration<SearchResult> children = ctx.search( dn, "(objectClass=*)", ctls );
+        try
+        {
+            while ( children.hasMore() && failure.get() == null )
+            {
+                // getName() is not always relative to dn (URLs, composite names), the full name is
+                LdapName child = new LdapName( children.next().getNameInNamespace() );
+                if ( result.size() == maxSplitChildren || !child.startsWith( context.getRdns() ) )
+                {
+                    return null;
+                }
+                result.add( child.getSuffix( context.size() ).toString() );
+            }
+        }
+        catch ( SizeLimitExceededException e )
+        {
+            return null;
+        }
+        finally
+        {
+            children.close();
+        }
+        return result;
+    }
+
+
+    private void emit( LdapContext ctx, String dn, SearchScope scope ) throws NamingException
+    {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope( scope.getJndiValue() );
+        ctls.setReturningAttributes( search.getAttrs() );
+        ctls.setReturningObjFlag( true );
+
+        // Subtrees are read in pages, like eachEntry does, so large levels stay below server size limits
+        int pageSize = scope == SearchScope.SUB ? ldap.getPageSize() : 0;
+        byte[] cookie = null;
+        try
+        {
+            do
+            {
+                if ( pageSize > 0 )
+                {
+                    ctx.setRequestControls( new Control[]
+                        { LDAP.pagedResultsControl( pageSize, cookie ) } );
+                }
+                NamingEnumeration<SearchResult> enm = ctx.search( dn, search.getFilter(), search.getFilterArgs(),
+                    ctls );
+                try
+                {
+                    while ( enm.hasMore() && failure.get() == null )
+                    {
+                        call( enm.next().getObject() );
+                    }
+                }
+                finally
+                {
+                    enm.close();
+                }
+                cookie = pageSize > 0 && failure.get() == null ? LDAP.pagedResultsCookie( ctx.getResponseControls() )
+                    : null;
+            }
+            while ( cookie != null );
+        }
+        finally
+        {
+            if ( pageSize > 0 )
+            {
+                // The pooled context is reused by other operations
+                ctx.setRequestControls( null );
+            }
+        }
+    }
+
+
+    private void call( Object obj )
+    {
+        if ( serialized )
+        {
+            synchronized ( closure )
+            {
+                closure.call( obj );
+            }
+        }
+        else
+        {
+            closure.call( obj );
+        }
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+
+/**
+ * Collects statistics of search operations per filter shape, base and scope, and keeps a log of slow
+ * operations.
+ * <p>
+ * The filter shape is the filter with all assertion values replaced by "?" (wildcards are kept), so
+ * "(uid=john)" and "(uid=jane)" are counted together, while "(cn=*smith*)" shows up as "(cn=*?*)".
+ * Latency percentiles are estimated from a histogram with buckets that are a factor sqrt(2) wide.
+ * <p>
+ * The time of an operation is split in connect (opening the context, which includes the bind), search
+ * (waiting for and reading results) and mapping (converting results to entries). For eachEntry the search
+ * time includes the time spent in the closure.
+ * <p>
+ * Failed operations are counted as errors and are not part of the latency statistics. The slow operation
+ * log only shows the filter shape, unless logging of filter values is enabled; values in filters are often
+ * names or other personal data.
+ * <p>
+ * Statistics are kept for at most maxShapes combinations of filter shape, base and scope. Operations with
+ * further combinations are counted together in one row with the filter "(other)", so callers that send
+ * many different bases or filters can not make the statistics grow without limit.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class QueryProfiler
+{
+    private static final Logger LOG = Logger.getLogger( QueryProfiler.class.getName() );
+
+    public static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 1000L;
+
+    public static final int DEFAULT_SLOW_LOG_SIZE = 100;
+
+    public static final int DEFAULT_MAX_SHAPES = 1000;
+
+    private static final String OTHER = "(other)";
+
+    private static final int BUCKETS = 64;
+
+    /** Mapping time and estimated bytes of the operation running in the current thread. */
+    private static final ThreadLocal<long[]> MAPPING = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[2];
+        }
+    };
+
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    private final LinkedList<Map<String, Object>> slowLog = new LinkedList<Map<String, Object>>();
+
+    private volatile long slowThresholdMillis = DEFAULT_SLOW_THRESHOLD_MILLIS;
+
+    private volatile int slowLogSize = DEFAULT_SLOW_LOG_SIZE;
+
+    private volatile int maxShapes = DEFAULT_MAX_SHAPES;
+
+    /** Operations that did not get statistics of their own because maxShapes was reached. */
+    private volatile Stats other = new Stats( OTHER, null, null );
+
+    private volatile boolean logFilterValues;
+
+
+    private static class Stats
+    {
+        final String filter;
+
+        final String base;
+
+        final SearchScope scope;
+
+        final AtomicLong count = new AtomicLong();
+
+        final AtomicLong errors = new AtomicLong();
+
+        final AtomicLong totalNanos = new AtomicLong();
+
+        final AtomicLong maxNanos = new AtomicLong();
+
+        final AtomicLong entries = new AtomicLong();
+
+        final AtomicLong bytes = new AtomicLong();
+
+        final AtomicLongArray histogram = new AtomicLongArray( BUCKETS );
+
+
+        Stats( String filter, String base, SearchScope scope )
+        {
+            this.filter = filter;
+            this.base = base;
+            this.scope = scope;
+        }
+
+
+        void add( long nanos, long entryCount, long byteCount )
+        {
+            count.incrementAndGet();
+            totalNanos.addAndGet( nanos );
+            entries.addAndGet( entryCount );
+            bytes.addAndGet( byteCount );
+            histogram.incrementAndGet( bucket( nanos ) );
+            long max = maxNanos.get();
+            while ( nanos > max && !maxNanos.compareAndSet( max, nanos ) )
+            {
+                max = maxNanos.get();
+            }
+        }
+
+
+        /**
+         * @return upper bound, in milliseconds, of the bucket holding the given fraction of all operations
+         */
+        double percentile( double fraction )
+        {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                counts[i] = histogram.get( i );
+                total += counts[i];
+            }
+            long rank = ( long ) Math.ceil( total * fraction );
+            long seen = 0;
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                seen += counts[i];
+                if ( seen >= rank && seen > 0 )
+                {
+                    return Math.min( bucketLimit( i ), maxNanos.get() ) / 1000000.0;
+                }
+            }
+            return 0;
+        }
+    }
+
+
+    /**
+     * Timing of one operation, created by {@link QueryProfiler#start(Search)}.
+     */
+    class Operation
+    {
+        private final Search search;
+
+        private final long start = System.nanoTime();
+
+        private long connected;
+
+        /** Mapping totals of an enclosing operation in this thread, restored when this one ends. */
+        private final long[] outer;
+
+
+        Operation( Search search )
+        {
+            this.search = search;
+            long[] mapping = MAPPING.get();
+            outer = mapping.clone();
+            mapping[0] = 0;
+            mapping[1] = 0;
+        }
+
+
+        void connected()
+        {
+            connected = System.nanoTime();
+        }
+
+
+        void finished( long entryCount )
+        {
+            long end = System.nanoTime();
+            long[] mapping = MAPPING.get();
+            long mappingNanos = mapping[0];
+            long byteCount = mapping[1];
+            restore( mapping );
+            record( search, start, connected == 0 ? start : connected, end, mappingNanos, entryCount, byteCount );
+        }
+
+
+        void failed( Throwable error )
+        {
+            long end = System.nanoTime();
+            restore( MAPPING.get() );
+            recordError( search, start, end, error );
+        }
+
+
+        private void restore( long[] mapping )
+        {
+            mapping[0] = outer[0];
+            mapping[1] = outer[1];
+        }
+    }
+
+
+    /**
+     * Adds time spent converting a search result to an entry to the operation running in this thread.
+     * Called by the object factory.
+     *
+     * @param nanos time spent mapping
+     * @param bytes estimated size of the entry
+     */
+    public static void recordMapping( long nanos, long bytes )
+    {
+        long[] mapping = MAPPING.get();
+        mapping[0] += nanos;
+        mapping[1] += bytes;
+    }
+
+
+    Operation start( Search search )
+    {
+        return new Operation( search );
+    }
+
+
+    private Stats stats( Search search, String shape )
+    {
+        String key = search.getScope() + "\u0000" + search.getBase() + "\u0000" + shape;
+        Stats s = stats.get( key );
+        if ( s == null )
+        {
+            // Concurrent callers may exceed the limit by a few rows, that is good enough
+            if ( stats.size() >= maxShapes )
+            {
+                return other;
+            }
+            stats.putIfAbsent( key, new Stats( shape, search.getBase(), search.getScope() ) );
+            s = stats.get( key );
+        }
+        return s;
+    }
+
+
+    private void record( Search search, long start, long connected, long end, long mappingNanos, long entryCount,
+        long byteCount )
+    {
+        String shape = shape( search.getFilter() );
+        long total = end - start;
+        stats( search, shape ).add( total, entryCount, byteCount );
+
+        if ( total / 1000000L >= slowThresholdMillis )
+        {
+            Map<String, Object> op = slowOperation( search, shape, total );
+            op.put( "connectMillis", millis( connected - start ) );
+            op.put( "searchMillis", millis( end - connected - mappingNanos ) );
+            op.put( "mappingMillis", millis( mappingNanos ) );
+            op.put( "entries", Long.valueOf( entryCount ) );
+            op.put( "bytes", Long.valueOf( byteCount ) );
+            logSlowOperation( op );
+        }
+    }
+
+
+    private void recordError( Search search, long start, long end, Throwable error )
+    {
+        String shape = shape( search.getFilter() );
+        stats( search, shape ).errors.incrementAndGet();
+
+        long total = end - start;
+        if ( total / 1000000L >= slowThresholdMillis )
+        {
+            Map<String, Object> op = slowOperation( search, shape, total );
+            op.put( "error", error.getClass().getName() );
+            logSlowOperation( op );
+        }
+    }
+
+
+    private Map<String, Object> slowOperation( Search search, String shape, long total )
+    {
+        Map<String, Object> op = new LinkedHashMap<String, Object>();
+        op.put( "time", Long.valueOf( System.currentTimeMillis() ) );
+        op.put( "filter", shape );
+        if ( logFilterValues )
+        {
+            op.put( "filterValues", search.getFilter() );
+            if ( search.getFilterArgs() != null )
+            {
+                op.put( "filterArgs", Arrays.asList( search.getFilterArgs() ) );
+            }
+        }
+        op.put( "base", search.getBase() );
+        op.put( "scope", search.getScope() );
+        op.put( "totalMillis", millis( total ) );
+        return op;
+    }
+
+
+    private void logSlowOperation( Map<String, Object> op )
+    {
+        synchronized ( slowLog )
+        {
+            slowLog.addFirst( op );
+            while ( slowLog.size() > slowLogSize )
+            {
+                slowLog.removeLast();
+            }
+        }
+        LOG.warning( "Slow LDAP operation: " + op );
+    }
+
+
+    /**
+     * Returns the statistics of all filter shapes, the one with the highest total time first. Each row has
+     * filter, base, scope, count, errors, totalMillis, p50Millis, p99Millis, maxMillis, entries and bytes.
+     */
+    public List<Map<String, Object>> getReport()
+    {
+        List<Stats> all = new ArrayList<Stats>( stats.values() );
+        Stats o = other;
+        if ( o.count.get() > 0 || o.errors.get() > 0 )
+        {
+            all.add( o );
+        }
+        Collections.sort( all, new Comparator<Stats>()
+        {
+            public int compare( Stats s1, Stats s2 )
+            {
+                long t1 = s1.totalNanos.get();
+                long t2 = s2.totalNanos.get();
+                return t1 < t2 ? 1 : ( t1 > t2 ? -1 : 0 );
+            }
+        } );
+
+        List<Map<String, Object>> report = new ArrayList<Map<String, Object>>();
+        for ( Stats s : all )
+        {
+            Map<String, Object> row = new LinkedHashMap<String, Object>();
+            row.put( "filter", s.filter );
+            row.put( "base", s.base );
+            row.put( "scope", s.scope );
+            row.put( "count", Long.valueOf( s.count.get() ) );
+            row.put( "errors", Long.valueOf( s.errors.get() ) );
+            row.put( "totalMillis", millis( s.totalNanos.get() ) );
+            row.put( "p50Millis", Double.valueOf( s.percentile( 0.5 ) ) );
+            row.put( "p99Millis", Double.valueOf( s.percentile( 0.99 ) ) );
+            row.put( "maxMillis", millis( s.maxNanos.get() ) );
+            row.put( "entries", Long.valueOf( s.entries.get() ) );
+            row.put( "bytes", Long.valueOf( s.bytes.get() ) );
+            report.add( row );
+        }
+        return report;
+    }
+
+
+    /**
+     * @return the most recent operations above the slow threshold, newest first
+     */
+    public List<Map<String, Object>> getSlowOperations()
+    {
+        synchronized ( slowLog )
+        {
+            return new ArrayList<Map<String, Object>>( slowLog );
+        }
+    }
+
+
+    public void reset()
+    {
+        stats.clear();
+        other = new Stats( OTHER, null, null );
+        synchronized ( slowLog )
+        {
+            slowLog.clear();
+        }
+    }
+
+
+    public long getSlowThresholdMillis()
+    {
+        return slowThresholdMillis;
+    }
+
+
+    public void setSlowThresholdMillis( long slowThresholdMillis )
+    {
+        this.slowThresholdMillis = slowThresholdMillis;
+    }
+
+
+    public boolean isLogFilterValues()
+    {
+        return logFilterValues;
+    }
+
+
+    /**
+     * If true, slow operations are logged with their complete filter and filter arguments, not only the
+     * filter shape. Off by default, as filter values may be personal data.
+     */
+    public void setLogFilterValues( boolean logFilterValues )
+    {
+        this.logFilterValues = logFilterValues;
+    }
+
+
+    public int getMaxShapes()
+    {
+        return maxShapes;
+    }
+
+
+    /**
+     * Sets the number of filter shape, base and scope combinations with statistics of their own (default
+     * 1000). Operations with further combinations are counted in the "(other)" row.
+     */
+    public void setMaxShapes( int maxShapes )
+    {
+        this.maxShapes = maxShapes;
+    }
+
+
+    public int getSlowLogSize()
+    {
+        return slowLogSize;
+    }
+
+
+    public void setSlowLogSize( int slowLogSize )
+    {
+        this.slowLogSize = slowLogSize;
+    }
+
+
+    /**
+     * Replaces the assertion values of a filter with "?", keeping wildcards. Attribute names are
+     * converted to lower case.
+     */
+    static String shape( String filter )
+    {
+        StringBuilder buf = new StringBuilder( filter.length() );
+        int i = 0;
+        int n = filter.length();
+        while ( i < n )
+        {
+            char c = filter.charAt( i );
+            if ( c == '=' )
+            {
+                buf.append( c );
+                i++;
+                boolean inValue = false;
+                while ( i < n && filter.charAt( i ) != ')' )
+                {
+                    char v = filter.charAt( i++ );
+                    if ( v == '*' )
+                    {
+                        buf.append( '*' );
+                        inValue = false;
+                    }
+                    else if ( !inValue )
+                    {
+                        buf.append( '?' );
+                        inValue = true;
+                    }
+                    if ( v == '\\' && i < n )
+                    {
+                        // Escaped character, part of the value
+                        i++;
+                    }
+                }
+            }
+            else
+            {
+                buf.append( c );
+                i++;
+            }
+        }
+        return buf.toString().toLowerCase( Locale.ENGLISH );
+    }
+
+
+    private static int bucket( long nanos )
+    {
+        long micros = Math.max( 1, nanos / 1000 );
+        int b = ( int ) ( Math.log( micros ) / Math.log( 2 ) * 2 );
+        return Math.min( Math.max( b, 0 ), BUCKETS - 1 );
+    }
+
+
+    private static long bucketLimit( int bucket )
+    {
+        return ( long ) ( Math.pow( 2, ( bucket + 1 ) / 2.0 ) * 1000 );
+    }
+
+
+    private static Double millis( long nanos )
+    {
+        return Double.valueOf( nanos / 1000000.0 );
+    }
+}
@@ -28,6 +28,9 @@ import java.util.Map;
 
 /**
  * Contains all parameters for an LDAP search. Filled with default values.
+ * <p>
+ * A Search is a plain mutable object and is not thread-safe, but {@link LDAP} copies it at the start
+ * of each operation.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  * @version $Rev$, $Date$
@@ -44,6 +47,8 @@ public class Search
 
     private String[] attrs;
 
+    private boolean coalesce;
+
 
     public Search()
     {
@@ -52,6 +57,22 @@ public class Search
         this.filter = "(objectClass=*)";
         this.filterArgs = null;
         this.attrs = null;
+        this.coalesce = true;
+    }
+
+
+    /**
+     * Creates a copy of another search. Operations of {@link LDAP} work on such a copy, so a Search object
+     * may be changed or reused by the caller while an operation is running in another thread.
+     */
+    public Search( Search other )
+    {
+        this.base = other.base;
+        this.scope = other.scope;
+        this.filter = other.filter;
+        this.filterArgs = other.filterArgs == null ? null : other.filterArgs.clone();
+        this.attrs = other.attrs == null ? null : other.attrs.clone();
+        this.coalesce = other.coalesce;
     }
 
 
@@ -87,6 +108,10 @@ public class Search
                 }
                 this.setFilterArgs( values );
             }
+            else if ( key.equalsIgnoreCase( "coalesce" ) )
+            {
+                this.setCoalesce( Boolean.valueOf( map.get( key ).toString() ) );
+            }
             else
             {
                 throw new IllegalArgumentException( "Unknown parameter for search: " + key );
@@ -143,6 +168,23 @@ public class Search
     }
 
 
+    public boolean isCoalesce()
+    {
+        return coalesce;
+    }
+
+
+    /**
+     * Allows this search to share its result with identical searches running at the same time, if the
+     * LDAP object has a {@link SearchCoalescer}. Set to false when the result must reflect a change
+     * that was just made.
+     */
+    public void setCoalesce( boolean coalesce )
+    {
+        this.coalesce = coalesce;
+    }
+
+
     public SearchScope getScope()
     {
         return scope;
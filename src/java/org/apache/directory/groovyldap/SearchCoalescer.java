@@ -0,0 +1,135 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+
+
+/**
+ * Lets concurrent identical searches share one request to the server. The first caller performs the search,
+ * callers that arrive with the same key while it is running wait for it and get the same result. Nothing is
+ * kept after the search has completed, so results are never older than the request that produced them.
+ * <p>
+ * Every caller gets its own copy of the result, entries included, so callers can change what they got
+ * without affecting each other.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class SearchCoalescer
+{
+    private final ConcurrentHashMap<String, FutureTask<List<Object>>> inFlight = new ConcurrentHashMap<String, FutureTask<List<Object>>>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong shared = new AtomicLong();
+
+
+    /**
+     * Performs the search, or waits for an identical search that is already running.
+     *
+     * @param key identifies the search, including connection and bind identity
+     * @param search performs the search when no identical search is running
+     * @return a copy of the search result
+     * @throws NamingException if the search failed
+     */
+    List<Object> execute( String key, final Callable<List<Object>> search ) throws NamingException
+    {
+        requests.incrementAndGet();
+        FutureTask<List<Object>> task = new FutureTask<List<Object>>( search );
+
+        FutureTask<List<Object>> running = inFlight.putIfAbsent( key, task );
+        if ( running == null )
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                inFlight.remove( key, task );
+            }
+            return LdapEntry.copyAll( get( task ) );
+        }
+        shared.incrementAndGet();
+        return LdapEntry.copyAll( get( running ) );
+    }
+
+
+    private static List<Object> get( FutureTask<List<Object>> task ) throws NamingException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException( "Interrupted while waiting for search result" );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof NamingException )
+            {
+                throw ( NamingException ) cause;
+            }
+            else if ( cause instanceof RuntimeException )
+            {
+                throw ( RuntimeException ) cause;
+            }
+            else if ( cause instanceof Error )
+            {
+                throw ( Error ) cause;
+            }
+            NamingException ne = new NamingException( "Search failed" );
+            ne.setRootCause( cause );
+            throw ne;
+        }
+    }
+
+
+    /**
+     * @return number of searches passed to this coalescer
+     */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+
+    /**
+     * @return number of searches that were answered by an identical search already running
+     */
+    public long getShared()
+    {
+        return shared.get();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.groovyldap;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+
+/**
+ * Keeps bound TLS connections of one LDAP object open between operations, so the TLS handshake and the
+ * bind are paid once per connection instead of once per operation. The JNDI connection pool cannot be
+ * used for these: it does not pool StartTLS connections, nor connections using a socket factory per
+ * configuration.
+ * <p>
+ * The most recently used connection is handed out first. Connections idle for longer than the idle timeout
+ * are closed, as the server may have dropped them, and connections that failed with a communication error
+ * are not reused.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+class SecureContextPool
+{
+    private static final int MAX_IDLE = 8;
+
+    private static final long IDLE_TIMEOUT_MILLIS = 60000L;
+
+    private final LDAP ldap;
+
+    private final LinkedBlockingDeque<PooledContext> idle = new LinkedBlockingDeque<PooledContext>();
+
+    private final AtomicLong opened = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+
+    private static class PooledContext
+    {
+        final LdapContext ctx;
+
+        final long released = System.currentTimeMillis();
+
+
+        PooledContext( LdapContext ctx )
+        {
+            this.ctx = ctx;
+        }
+    }
+
+
+    SecureContextPool( LDAP ldap )
+    {
+        this.ldap = ldap;
+    }
+
+
+    LdapContext borrow() throws NamingException
+    {
+        PooledContext pc;
+        while ( ( pc = idle.pollFirst() ) != null )
+        {
+            if ( System.currentTimeMillis() - pc.released < IDLE_TIMEOUT_MILLIS )
+            {
+                reused.incrementAndGet();
+                return pc.ctx;
+            }
+            close( pc.ctx );
+        }
+        opened.incrementAndGet();
+        return ldap.openContext( ldap.createEnvironment() );
+    }
+
+
+    /**
+     * Returns a connection to the pool, or closes it.
+     *
+     * @param reusable false if the connection failed, or its state is unknown
+     */
+    void release( LdapContext ctx, boolean reusable )
+    {
+        if ( !reusable || idle.size() >= MAX_IDLE || !idle.offerFirst( new PooledContext( ctx ) ) )
+        {
+            close( ctx );
+        }
+    }
+
+
+    /**
+     * Closes all idle connections.
+     */
+    void close()
+    {
+        PooledContext pc;
+        while ( ( pc = idle.pollFirst() ) != null )
+        {
+            close( pc.ctx );
+        }
+    }
+
+
+    private static void close( LdapContext ctx )
+    {
+        try
+        {
+            ctx.close();
+        }
+        catch ( NamingException e )
+        {
+            // Ignored
+        }
+    }
+
+
+    Map<String, Long> getStatistics()
+    {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put( "opened", opened.get() );
+        stats.put( "reused", reused.get() );
+        stats.put( "idle", Long.valueOf( idle.size() ) );
+        return stats;
+    }
+}
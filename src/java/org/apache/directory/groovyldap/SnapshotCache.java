@@ -0,0 +1,490 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+
+
+/**
+ * Keeps search results in memory and in an {@link EntrySnapshot} file, so they survive a restart. After a
+ * restart the results in the file are served at once and brought up to date in the background.
+ * <p>
+ * Refreshes are incremental: the loader is asked for entries modified since the previous refresh (a
+ * modifyTimestamp value), and these are merged into the cached results by DN. Entries that were deleted or
+ * no longer match are removed on every refresh, by comparing the results with the DNs the search matches
+ * now. Every fullRefreshEvery refreshes all results are reloaded, which also picks up changes that did not
+ * update the modifyTimestamp.
+ * <p>
+ * Results put while a refresh runs are newer than what the refresh read, so the refresh does not replace
+ * them.
+ * <p>
+ * Only keys that were used recently are kept and refreshed: a key that has not been read or put for
+ * keyExpiryMillis is dropped, and when more than maxKeys keys are cached the least recently used are dropped.
+ * <p>
+ * Results are copied when they are put and when they are read, entries included, so callers can sort or
+ * change what they got without affecting other callers or the snapshot.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class SnapshotCache
+{
+    private static final Logger LOG = Logger.getLogger( SnapshotCache.class.getName() );
+
+    /**
+     * Allowance for clock differences between this host and the directory server. Entries modified
+     * within this period before the previous refresh are fetched again.
+     */
+    private static final long CLOCK_SKEW_MILLIS = 300000L;
+
+    public static final int DEFAULT_MAX_KEYS = 1000;
+
+    public static final long DEFAULT_KEY_EXPIRY_MILLIS = 3600000L;
+
+    /**
+     * Loads search results for the cache.
+     */
+    public interface Loader
+    {
+        /**
+         * @param key the key the results were cached under
+         * @param modifiedSince GeneralizedTime value; only entries modified at or after this time are needed.
+         *        Null for a full reload.
+         */
+        List<Object> load( String key, String modifiedSince ) throws NamingException;
+
+
+        /**
+         * @param key the key the results were cached under
+         * @return the normalized DNs (see {@link DistinguishedName#getNormalizedName()}) of all entries
+         *         the search matches now
+         */
+        Set<String> names( String key ) throws NamingException;
+    }
+
+    private final File file;
+
+    private final Loader loader;
+
+    private final ConcurrentHashMap<String, List<Object>> results = new ConcurrentHashMap<String, List<Object>>();
+
+    /** The cached keys, with the time each was last read or put. */
+    private final ConcurrentHashMap<String, Long> lastAccess = new ConcurrentHashMap<String, Long>();
+
+    private volatile int maxKeys = DEFAULT_MAX_KEYS;
+
+    private volatile long keyExpiryMillis = DEFAULT_KEY_EXPIRY_MILLIS;
+
+    private volatile EntrySnapshot snapshot;
+
+    private volatile long lastRefresh;
+
+    private int refreshCount;
+
+    private ScheduledExecutorService scheduler;
+
+
+    public SnapshotCache( File file, Loader loader )
+    {
+        this.file = file;
+        this.loader = loader;
+    }
+
+
+    /**
+     * Opens the snapshot file, if there is one, and starts refreshing in the background. The first
+     * refresh starts immediately.
+     *
+     * @param refreshIntervalMillis time between refreshes
+     * @param fullRefreshEvery every n:th refresh reloads all results instead of fetching changes only
+     * @throws IllegalArgumentException if the interval or fullRefreshEvery is not positive
+     */
+    public synchronized void start( long refreshIntervalMillis, final int fullRefreshEvery )
+    {
+        if ( refreshIntervalMillis <= 0 || fullRefreshEvery <= 0 )
+        {
+            throw new IllegalArgumentException( "Refresh interval and fullRefreshEvery must be positive" );
+        }
+        if ( file.exists() )
+        {
+            try
+            {
+                snapshot = EntrySnapshot.open( file );
+                lastRefresh = snapshot.getCreated();
+                Long now = Long.valueOf( System.currentTimeMillis() );
+                for ( String key : snapshot.getKeys() )
+                {
+                    if ( lastAccess.size() < maxKeys )
+                    {
+                        lastAccess.putIfAbsent( key, now );
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                LOG.log( Level.WARNING, "Ignoring unreadable snapshot " + file, e );
+            }
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "ldap-snapshot-refresh" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+        scheduler.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    refresh( fullRefreshEvery );
+                }
+                catch ( RuntimeException e )
+                {
+                    // Thrown out of run(), it would cancel all later refreshes
+                    LOG.log( Level.WARNING, "Refresh of snapshot " + file + " failed", e );
+                }
+            }
+        }, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS );
+    }
+
+
+    public synchronized void stop()
+    {
+        if ( scheduler != null )
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+
+    /**
+     * @return a copy of the cached results, or null if nothing is cached for the key
+     */
+    public List<Object> get( String key )
+    {
+        List<Object> result = results.get( key );
+        EntrySnapshot s = snapshot;
+        // Keys dropped from the cache are not taken from the snapshot again, its entries may be stale
+        if ( result == null && s != null && lastAccess.containsKey( key ) )
+        {
+            try
+            {
+                List<Object> entries = s.getEntries( key );
+                if ( entries != null )
+                {
+                    results.putIfAbsent( key, Collections.unmodifiableList( entries ) );
+                    result = results.get( key );
+                }
+            }
+            catch ( IOException e )
+            {
+                LOG.log( Level.WARNING, "Could not read " + key + " from snapshot " + file, e );
+            }
+        }
+        if ( result == null )
+        {
+            return null;
+        }
+        lastAccess.put( key, Long.valueOf( System.currentTimeMillis() ) );
+        return LdapEntry.copyAll( result );
+    }
+
+
+    /**
+     * Caches a copy of the results.
+     */
+    public void put( String key, List<Object> entries )
+    {
+        lastAccess.put( key, Long.valueOf( System.currentTimeMillis() ) );
+        results.put( key, Collections.unmodifiableList( LdapEntry.copyAll( entries ) ) );
+        while ( lastAccess.size() > maxKeys )
+        {
+            remove( leastRecentlyUsed() );
+        }
+    }
+
+
+    private String leastRecentlyUsed()
+    {
+        String result = null;
+        long oldest = Long.MAX_VALUE;
+        for ( Map.Entry<String, Long> e : lastAccess.entrySet() )
+        {
+            if ( e.getValue().longValue() < oldest )
+            {
+                oldest = e.getValue().longValue();
+                result = e.getKey();
+            }
+        }
+        return result;
+    }
+
+
+    private void remove( String key )
+    {
+        if ( key != null )
+        {
+            lastAccess.remove( key );
+            results.remove( key );
+        }
+    }
+
+
+    /**
+     * Drops keys that have not been used for keyExpiryMillis.
+     */
+    private void expire()
+    {
+        long limit = System.currentTimeMillis() - keyExpiryMillis;
+        for ( Map.Entry<String, Long> e : lastAccess.entrySet() )
+        {
+            if ( e.getValue().longValue() < limit )
+            {
+                remove( e.getKey() );
+            }
+        }
+        // Results stored by a refresh while their key was dropped
+        results.keySet().retainAll( lastAccess.keySet() );
+    }
+
+
+    /**
+     * Writes all cached results to the snapshot file.
+     */
+    public synchronized void save() throws IOException
+    {
+        Map<String, List<Object>> all = new LinkedHashMap<String, List<Object>>();
+        for ( String key : keys() )
+        {
+            List<Object> entries = current( key );
+            if ( entries != null )
+            {
+                all.put( key, entries );
+            }
+        }
+        EntrySnapshot.write( file, all );
+    }
+
+
+    private List<String> keys()
+    {
+        return new ArrayList<String>( lastAccess.keySet() );
+    }
+
+
+    /**
+     * Brings the results of all keys up to date. Called by the background refresh.
+     *
+     * @param fullRefreshEvery every n:th refresh reloads all results instead of fetching changes only
+     */
+    synchronized void refresh( int fullRefreshEvery )
+    {
+        long start = System.currentTimeMillis();
+        expire();
+        boolean full = lastRefresh == 0 || ++refreshCount % fullRefreshEvery == 0;
+        String since = full ? null : generalizedTime( lastRefresh - CLOCK_SKEW_MILLIS );
+
+        for ( String key : keys() )
+        {
+            try
+            {
+                List<Object> before = results.get( key );
+                List<Object> changed = loader.load( key, since );
+                if ( full )
+                {
+                    replace( key, before, changed );
+                    continue;
+                }
+                List<Object> merged = merge( before == null ? current( key ) : before, changed );
+                List<Object> matching = retain( merged, loader.names( key ) );
+                if ( !changed.isEmpty() || matching.size() < merged.size() )
+                {
+                    replace( key, before, matching );
+                }
+            }
+            catch ( Exception e )
+            {
+                LOG.log( Level.WARNING, "Refresh of " + key + " failed", e );
+            }
+        }
+        lastRefresh = start;
+
+        try
+        {
+            save();
+        }
+        catch ( IOException e )
+        {
+            LOG.log( Level.WARNING, "Could not write snapshot " + file, e );
+        }
+    }
+
+
+    /**
+     * Returns the cached results without counting as a use of the key.
+     */
+    private List<Object> current( String key ) throws IOException
+    {
+        List<Object> result = results.get( key );
+        EntrySnapshot s = snapshot;
+        return result == null && s != null ? s.getEntries( key ) : result;
+    }
+
+
+    /**
+     * Stores refreshed results, unless results were put for the key after the refresh read it.
+     *
+     * @param before the results the refresh started from, null if there were none in memory
+     */
+    private void replace( String key, List<Object> before, List<Object> entries )
+    {
+        List<Object> value = Collections.unmodifiableList( new ArrayList<Object>( entries ) );
+        boolean replaced = before == null ? results.putIfAbsent( key, value ) == null : results.replace( key,
+            before, value );
+        if ( !replaced && LOG.isLoggable( Level.FINE ) )
+        {
+            LOG.fine( "Keeping results put for " + key + " during the refresh" );
+        }
+    }
+
+
+    /**
+     * @return the entries whose DN is among the names, and all objects that are not entries
+     */
+    private static List<Object> retain( List<Object> entries, Set<String> names )
+    {
+        List<Object> result = new ArrayList<Object>( entries.size() );
+        for ( Object entry : entries )
+        {
+            Object dn = key( entry );
+            if ( !( dn instanceof DistinguishedName )
+                || names.contains( ( ( DistinguishedName ) dn ).getNormalizedName() ) )
+            {
+                result.add( entry );
+            }
+        }
+        return result;
+    }
+
+
+    private static List<Object> merge( List<Object> current, List<Object> changed )
+    {
+        Map<Object, Integer> positions = new HashMap<Object, Integer>();
+        List<Object> result = new ArrayList<Object>();
+        if ( current != null )
+        {
+            result.addAll( current );
+        }
+        for ( int i = 0; i < result.size(); i++ )
+        {
+            positions.put( key( result.get( i ) ), i );
+        }
+        for ( Object entry : changed )
+        {
+            Integer i = positions.get( key( entry ) );
+            if ( i != null )
+            {
+                result.set( i, entry );
+            }
+            else
+            {
+                positions.put( key( entry ), result.size() );
+                result.add( entry );
+            }
+        }
+        return result;
+    }
+
+
+    private static Object key( Object entry )
+    {
+        if ( entry instanceof LdapEntry )
+        {
+            return ( ( LdapEntry ) entry ).getDistinguishedName();
+        }
+        return entry;
+    }
+
+
+    public int getMaxKeys()
+    {
+        return maxKeys;
+    }
+
+
+    /**
+     * Sets the number of keys kept, the least recently used are dropped first (default 1000).
+     */
+    public void setMaxKeys( int maxKeys )
+    {
+        this.maxKeys = maxKeys;
+    }
+
+
+    public long getKeyExpiryMillis()
+    {
+        return keyExpiryMillis;
+    }
+
+
+    /**
+     * Sets how long a key is kept and refreshed after it was last used (default one hour).
+     */
+    public void setKeyExpiryMillis( long keyExpiryMillis )
+    {
+        this.keyExpiryMillis = keyExpiryMillis;
+    }
+
+
+    private static String generalizedTime( long millis )
+    {
+        SimpleDateFormat format = new SimpleDateFormat( "yyyyMMddHHmmss'Z'" );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+        return format.format( new Date( millis ) );
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.groovyldap;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Where an incremental search left off: the highest value of the watermark attribute seen so far, the
+ * entries that had exactly that value (with a digest of their attributes), and the DNs of all entries matching
+ * the search. Pass the same state
+ * to {@link LDAP#eachChange(Search, SyncState, groovy.lang.Closure, groovy.lang.Closure)} again to get the
+ * changes since, and save it between runs of a job.
+ * <p>
+ * The watermark attribute must grow with every change: modifyTimestamp (the default), entryCSN (OpenLDAP)
+ * or uSNChanged (Active Directory). modifyTimestamp only has a resolution of a second, and on replicated
+ * directories changes may arrive late; use the attribute of the server if possible.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class SyncState implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final String DEFAULT_WATERMARK_ATTRIBUTE = "modifyTimestamp";
+
+    public static final int DEFAULT_DELETION_CHECK_EVERY = 24;
+
+    private final String watermarkAttribute;
+
+    private String watermark;
+
+    /** Normalized DNs of the entries whose watermark equals the watermark, to a digest of their attributes. */
+    private Map<String, String> boundary = new HashMap<String, String>();
+
+    /** Normalized DNs of all entries matching the search, null before the first run. */
+    private Set<String> known;
+
+    private int runs;
+
+    private int deletionCheckEvery = DEFAULT_DELETION_CHECK_EVERY;
+
+
+    public SyncState()
+    {
+        this( DEFAULT_WATERMARK_ATTRIBUTE );
+    }
+
+
+    public SyncState( String watermarkAttribute )
+    {
+        this.watermarkAttribute = watermarkAttribute;
+    }
+
+
+    /**
+     * Reads a state written by {@link #save(File)}.
+     *
+     * @return the state, or null if the file does not exist
+     */
+    public static SyncState load( File file ) throws IOException
+    {
+        if ( !file.exists() )
+        {
+            return null;
+        }
+        ObjectInputStream in = new ObjectInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try
+        {
+            return ( SyncState ) in.readObject();
+        }
+        catch ( ClassNotFoundException e )
+        {
+            throw new IOException( "Unreadable sync state: " + e.getMessage() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Writes this state to a file. The file is written under a temporary name and renamed when complete.
+     */
+    public synchronized void save( File file ) throws IOException
+    {
+        File tmp = new File( file.getPath() + ".tmp" );
+        ObjectOutputStream out = new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+        try
+        {
+            out.writeObject( this );
+        }
+        finally
+        {
+            out.close();
+        }
+        if ( !tmp.renameTo( file ) && !( file.delete() && tmp.renameTo( file ) ) )
+        {
+            throw new IOException( "Could not rename " + tmp + " to " + file );
+        }
+    }
+
+
+    public String getWatermarkAttribute()
+    {
+        return watermarkAttribute;
+    }
+
+
+    /**
+     * @return the highest watermark value seen, null before the first run
+     */
+    public synchronized String getWatermark()
+    {
+        return watermark;
+    }
+
+
+    public int getDeletionCheckEvery()
+    {
+        return deletionCheckEvery;
+    }
+
+
+    /**
+     * @param deletionCheckEvery every n:th run lists all DNs matching the search to find deleted entries
+     */
+    public void setDeletionCheckEvery( int deletionCheckEvery )
+    {
+        if ( deletionCheckEvery < 1 )
+        {
+            throw new IllegalArgumentException( "deletionCheckEvery must be positive" );
+        }
+        this.deletionCheckEvery = deletionCheckEvery;
+    }
+
+
+    synchronized Map<String, String> getBoundary()
+    {
+        return boundary;
+    }
+
+
+    synchronized Set<String> getKnown()
+    {
+        return known;
+    }
+
+
+    synchronized int getRuns()
+    {
+        return runs;
+    }
+
+
+    /**
+     * Records the outcome of a run.
+     */
+    synchronized void update( String watermark, Map<String, String> boundary, Set<String> known )
+    {
+        this.watermark = watermark;
+        this.boundary = boundary;
+        this.known = known;
+        this.runs++;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.groovyldap;
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.naming.NamingException;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * Trust material and mode of secure connections. ldaps:// URLs always use TLS; for ldap:// URLs TLS is
+ * negotiated with StartTLS if startTls is set.
+ * <p>
+ * All connections made with one configuration share a single SSLContext, so the server can resume TLS
+ * sessions instead of doing a full handshake for every new connection. Without a trust store, the default
+ * trust store of the JVM is used.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class TlsConfiguration
+{
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+
+    private String trustStore;
+
+    private String trustStorePassword;
+
+    private String trustStoreType = KeyStore.getDefaultType();
+
+    private String keyStore;
+
+    private String keyStorePassword;
+
+    private String keyStoreType = KeyStore.getDefaultType();
+
+    private String protocol = "TLS";
+
+    private boolean startTls;
+
+    private int sessionTimeoutSeconds = DEFAULT_SESSION_TIMEOUT_SECONDS;
+
+    private SSLSocketFactory socketFactory;
+
+    private String identity;
+
+
+    /**
+     * Returns the socket factory of this configuration. It is created on first use; later changes to the
+     * configuration have no effect.
+     */
+    public synchronized SSLSocketFactory getSocketFactory() throws NamingException
+    {
+        if ( socketFactory == null )
+        {
+            try
+            {
+                KeyManager[] keyManagers = null;
+                if ( keyStore != null )
+                {
+                    KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+                    kmf.init( load( keyStore, keyStorePassword, keyStoreType ), password( keyStorePassword ) );
+                    keyManagers = kmf.getKeyManagers();
+                }
+                TrustManager[] trustManagers = null;
+                if ( trustStore != null )
+                {
+                    TrustManagerFactory tmf = TrustManagerFactory.getInstance( TrustManagerFactory
+                        .getDefaultAlgorithm() );
+                    tmf.init( load( trustStore, trustStorePassword, trustStoreType ) );
+                    trustManagers = tmf.getTrustManagers();
+                }
+                SSLContext context = SSLContext.getInstance( protocol );
+                context.init( keyManagers, trustManagers, null );
+                context.getClientSessionContext().setSessionTimeout( sessionTimeoutSeconds );
+                socketFactory = context.getSocketFactory();
+                identity = trustStore + '\u0000' + trustStoreType + '\u0000' + keyStore + '\u0000' + keyStoreType
+                    + '\u0000' + protocol + '\u0000' + sessionTimeoutSeconds;
+            }
+            catch ( GeneralSecurityException e )
+            {
+                NamingException ne = new NamingException( "Could not set up TLS: " + e.getMessage() );
+                ne.setRootCause( e );
+                throw ne;
+            }
+            catch ( IOException e )
+            {
+                NamingException ne = new NamingException( "Could not read key or trust store: " + e.getMessage() );
+                ne.setRootCause( e );
+                throw ne;
+            }
+        }
+        return socketFactory;
+    }
+
+
+    /**
+     * Returns the settings the socket factory was created with, without the passwords. Configurations with
+     * the same identity use the same trust and key material.
+     */
+    synchronized String getIdentity() throws NamingException
+    {
+        getSocketFactory();
+        return identity;
+    }
+
+
+    private static KeyStore load( String file, String password, String type ) throws GeneralSecurityException,
+        IOException
+    {
+        KeyStore ks = KeyStore.getInstance( type );
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            ks.load( in, password( password ) );
+        }
+        finally
+        {
+            in.close();
+        }
+        return ks;
+    }
+
+
+    private static char[] password( String password )
+    {
+        return password == null ? null : password.toCharArray();
+    }
+
+
+    public String getTrustStore()
+    {
+        return trustStore;
+    }
+
+
+    /**
+     * @param trustStore path of a key store with the certificates (or CA certificates) of trusted servers
+     */
+    public void setTrustStore( String trustStore )
+    {
+        this.trustStore = trustStore;
+    }
+
+
+    public String getTrustStorePassword()
+    {
+        return trustStorePassword;
+    }
+
+
+    public void setTrustStorePassword( String trustStorePassword )
+    {
+        this.trustStorePassword = trustStorePassword;
+    }
+
+
+    public String getTrustStoreType()
+    {
+        return trustStoreType;
+    }
+
+
+    public void setTrustStoreType( String trustStoreType )
+    {
+        this.trustStoreType = trustStoreType;
+    }
+
+
+    public String getKeyStore()
+    {
+        return keyStore;
+    }
+
+
+    /**
+     * @param keyStore path of a key store with a client certificate, for servers that require one
+     */
+    public void setKeyStore( String keyStore )
+    {
+        this.keyStore = keyStore;
+    }
+
+
+    public String getKeyStorePassword()
+    {
+        return keyStorePassword;
+    }
+
+
+    public void setKeyStorePassword( String keyStorePassword )
+    {
+        this.keyStorePassword = keyStorePassword;
+    }
+
+
+    public String getKeyStoreType()
+    {
+        return keyStoreType;
+    }
+
+
+    public void setKeyStoreType( String keyStoreType )
+    {
+        this.keyStoreType = keyStoreType;
+    }
+
+
+    public String getProtocol()
+    {
+        return protocol;
+    }
+
+
+    public void setProtocol( String protocol )
+    {
+        this.protocol = protocol;
+    }
+
+
+    public boolean isStartTls()
+    {
+        return startTls;
+    }
+
+
+    /**
+     * @param startTls if true, ldap:// connections are upgraded with StartTLS before binding
+     */
+    public void setStartTls( boolean startTls )
+    {
+        this.startTls = startTls;
+    }
+
+
+    public int getSessionTimeoutSeconds()
+    {
+        return sessionTimeoutSeconds;
+    }
+
+
+    /**
+     * @param sessionTimeoutSeconds how long TLS sessions are kept for resumption
+     */
+    public void setSessionTimeoutSeconds( int sessionTimeoutSeconds )
+    {
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+    }
+}
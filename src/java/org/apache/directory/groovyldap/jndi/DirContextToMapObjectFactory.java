@@ -21,10 +21,9 @@ package org.apache.directory.groovyldap.jndi;
 
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 
 import javax.naming.Context;
 import javax.naming.Name;
@@ -34,6 +33,10 @@ import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.spi.DirObjectFactory;
 
+import org.apache.directory.groovyldap.AttributeSchema;
+import org.apache.directory.groovyldap.LdapEntry;
+import org.apache.directory.groovyldap.QueryProfiler;
+
 
 /**
  * A JNDI ObjectFactory, which transforms a DirContext object into a map which contains its attributes.
@@ -51,32 +54,45 @@ public class DirContextToMapObjectFactory implements DirObjectFactory
         if ( obj instanceof DirContext )
         {
 
+            long start = System.nanoTime();
+            long bytes = 0;
             DirContext dctx = ( DirContext ) obj;
 
-            Map<String, Object> map = new HashMap<String, Object>();
-            map.put( "dn", dctx.getNameInNamespace() );
+            LdapEntry map = new LdapEntry( dctx.getNameInNamespace() );
 
-            Attributes as = dctx.getAttributes( "" );
+            // The attributes come with the search result, reading them again would cost a round trip
+            Attributes as = attrs != null ? attrs : dctx.getAttributes( "" );
             NamingEnumeration<? extends Attribute> e = as.getAll();
             while ( e.hasMore() )
             {
                 Attribute attribute = e.next();
-                String attrName = attribute.getID().toLowerCase();
+                String attrName = attribute.getID().toLowerCase( Locale.ENGLISH );
 
                 if ( attribute.size() == 1 )
                 {
-                    map.put( attrName, attribute.get() );
+                    Object value = attribute.get();
+                    bytes += size( value );
+                    map.put( attrName, value );
                 }
                 else
                 {
                     List<Object> l = new ArrayList<Object>();
                     for ( int i = 0; i < attribute.size(); ++i )
                     {
-                        l.add( attribute.get( i ) );
+                        Object value = attribute.get( i );
+                        bytes += size( value );
+                        l.add( value );
                     }
                     map.put( attrName, l );
                 }
+                bytes += attrName.length();
+            }
+            Object schema = env == null ? null : env.get( AttributeSchema.ENVIRONMENT_KEY );
+            if ( schema instanceof AttributeSchema )
+            {
+                map.setSchema( ( AttributeSchema ) schema );
             }
+            QueryProfiler.recordMapping( System.nanoTime() - start, bytes );
             return map;
         }
         else
@@ -86,6 +102,19 @@ public class DirContextToMapObjectFactory implements DirObjectFactory
     }
 
 
+    /**
+     * Approximate size of a value as transferred by the server.
+     */
+    private static long size( Object value )
+    {
+        if ( value instanceof byte[] )
+        {
+            return ( ( byte[] ) value ).length;
+        }
+        return value == null ? 0 : value.toString().length();
+    }
+
+
     public Object getObjectInstance( Object obj, Name name, Context ctx, Hashtable env )
     {
         return null;
@@ -0,0 +1,70 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap.jndi;
+
+
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+
+
+/**
+ * The Active Directory fast concurrent bind extended operation. After it has been sent, binds on the
+ * connection only verify the credentials; the connection stays anonymous and no security context is built.
+ */
+public class FastBindRequest implements ExtendedRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final String OID = "1.2.840.113556.1.4.1781";
+
+
+    public String getID()
+    {
+        return OID;
+    }
+
+
+    public byte[] getEncodedValue()
+    {
+        return null;
+    }
+
+
+    public ExtendedResponse createExtendedResponse( final String id, byte[] berValue, int offset, int length )
+    {
+        return new ExtendedResponse()
+        {
+            private static final long serialVersionUID = 1L;
+
+
+            public String getID()
+            {
+                return id;
+            }
+
+
+            public byte[] getEncodedValue()
+            {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.groovyldap.jndi;
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.ConfigurationException;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocketFactory;
+
+
+/**
+ * Socket factory for ldaps:// connections with configured trust material. JNDI only takes the class name of
+ * a socket factory and calls its static getDefault() method, without passing anything from the environment.
+ * Factories are therefore registered for the server address of an environment, and each socket is created by
+ * the factory registered for the address it connects to. This holds for connections opened by any thread,
+ * including reconnects that JNDI makes on its own.
+ * <p>
+ * As the registry is shared by the whole JVM, an address can only be used with one TLS configuration;
+ * registering a different configuration for it fails. Connections to an address without a registered
+ * factory, and unconnected sockets (only used with a connect timeout), fail instead of falling back to the
+ * trust material of the JVM.
+ */
+public class TlsSocketFactory extends SSLSocketFactory
+{
+    private static final ConcurrentHashMap<String, Registration> FACTORIES = new ConcurrentHashMap<String, Registration>();
+
+    private static final TlsSocketFactory INSTANCE = new TlsSocketFactory();
+
+
+    private static class Registration
+    {
+        final String configuration;
+
+        final SSLSocketFactory factory;
+
+
+        Registration( String configuration, SSLSocketFactory factory )
+        {
+            this.configuration = configuration;
+            this.factory = factory;
+        }
+    }
+
+
+    private TlsSocketFactory()
+    {
+    }
+
+
+    /**
+     * Called by JNDI when it opens a connection.
+     */
+    public static SocketFactory getDefault()
+    {
+        return INSTANCE;
+    }
+
+
+    /**
+     * Sets the factory for connections to a server. Registering the same configuration again keeps the
+     * factory registered first.
+     *
+     * @param host host name as given in the LDAP URL
+     * @param port port of the server
+     * @param configuration identifies the trust and key material of the factory
+     * @param factory the factory to use
+     * @throws ConfigurationException if another configuration is registered for the address
+     */
+    public static void register( String host, int port, String configuration, SSLSocketFactory factory )
+        throws ConfigurationException
+    {
+        String key = key( host, port );
+        Registration existing = FACTORIES.putIfAbsent( key, new Registration( configuration, factory ) );
+        if ( existing != null && !existing.configuration.equals( configuration ) )
+        {
+            throw new ConfigurationException( key + " is already used with another TLS configuration" );
+        }
+    }
+
+
+    private static String key( String host, int port )
+    {
+        return host.toLowerCase( Locale.ENGLISH ) + ':' + port;
+    }
+
+
+    private static SSLSocketFactory delegate( String host, int port ) throws SSLException
+    {
+        Registration registration = FACTORIES.get( key( host, port ) );
+        if ( registration == null )
+        {
+            throw new SSLException( "No TLS configuration is registered for " + key( host, port ) );
+        }
+        return registration.factory;
+    }
+
+
+    private static SSLSocketFactory delegate( InetAddress host, int port ) throws SSLException
+    {
+        // getHostName() could do a reverse lookup and find a name the URL did not use
+        String s = host.toString();
+        int slash = s.lastIndexOf( '/' );
+        return delegate( slash > 0 ? s.substring( 0, slash ) : host.getHostAddress(), port );
+    }
+
+
+    @Override
+    public Socket createSocket() throws IOException
+    {
+        throw new SocketException( "Unconnected sockets are not supported, the server address selects the TLS "
+            + "configuration" );
+    }
+
+
+    @Override
+    public Socket createSocket( Socket s, String host, int port, boolean autoClose ) throws IOException
+    {
+        return delegate( host, port ).createSocket( s, host, port, autoClose );
+    }
+
+
+    @Override
+    public Socket createSocket( String host, int port ) throws IOException
+    {
+        return delegate( host, port ).createSocket( host, port );
+    }
+
+
+    @Override
+    public Socket createSocket( String host, int port, InetAddress localHost, int localPort ) throws IOException
+    {
+        return delegate( host, port ).createSocket( host, port, localHost, localPort );
+    }
+
+
+    @Override
+    public Socket createSocket( InetAddress host, int port ) throws IOException
+    {
+        return delegate( host, port ).createSocket( host, port );
+    }
+
+
+    @Override
+    public Socket createSocket( InetAddress address, int port, InetAddress localAddress, int localPort )
+        throws IOException
+    {
+        return delegate( address, port ).createSocket( address, port, localAddress, localPort );
+    }
+
+
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+        return ( ( SSLSocketFactory ) SSLSocketFactory.getDefault() ).getDefaultCipherSuites();
+    }
+
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+        return ( ( SSLSocketFactory ) SSLSocketFactory.getDefault() ).getSupportedCipherSuites();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.groovyldap.util;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A size-bounded map whose entries expire a fixed time after they were put. When the cache is full the
+ * least recently used entry is evicted. All methods are thread-safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$, $Date$
+ */
+public class ExpiringCache<K, V>
+{
+    private final long ttlMillis;
+
+    private final int maxSize;
+
+    private final LinkedHashMap<K, Item<V>> map;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    private static class Item<V>
+    {
+        final V value;
+
+        final long expires;
+
+
+        Item( V value, long expires )
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * @param ttlMillis time to live of each entry in milliseconds
+     * @param maxSize maximum number of entries
+     */
+    public ExpiringCache( long ttlMillis, final int maxSize )
+    {
+        if ( ttlMillis <= 0 || maxSize <= 0 )
+        {
+            throw new IllegalArgumentException( "ttlMillis and maxSize must be positive" );
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K, Item<V>>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<K, Item<V>> eldest )
+            {
+                if ( size() > ExpiringCache.this.maxSize )
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * @return the cached value, or null if there is no value or it has expired
+     */
+    public V get( K key )
+    {
+        synchronized ( map )
+        {
+            Item<V> item = map.get( key );
+            if ( item != null )
+            {
+                if ( item.expires - System.currentTimeMillis() > 0 )
+                {
+                    hits.incrementAndGet();
+                    return item.value;
+                }
+                map.remove( key );
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+
+    public void put( K key, V value )
+    {
+        Item<V> item = new Item<V>( value, System.currentTimeMillis() + ttlMillis );
+        synchronized ( map )
+        {
+            map.put( key, item );
+        }
+    }
+
+
+    /**
+     * @return true if the key was present
+     */
+    public boolean remove( K key )
+    {
+        synchronized ( map )
+        {
+            return map.remove( key ) != null;
+        }
+    }
+
+
+    public void clear()
+    {
+        synchronized ( map )
+        {
+            map.clear();
+        }
+    }
+
+
+    public int size()
+    {
+        synchronized ( map )
+        {
+            return map.size();
+        }
+    }
+
+
+    public long getTtlMillis()
+    {
+        return ttlMillis;
+    }
+
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+}
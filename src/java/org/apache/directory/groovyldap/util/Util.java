@@ -64,4 +64,18 @@ public class Util
         }
         return attr;
     }
+
+
+    /**
+     * @return the bytes as a string of lower case hexadecimal digits
+     */
+    public static String toHex( byte[] bytes )
+    {
+        StringBuilder buf = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            buf.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return buf.toString();
+    }
 }
@@ -0,0 +1,67 @@
+package grails.plugins.selection.ldap
+
+import javax.naming.InvalidNameException
+import javax.naming.ldap.Rdn
+
+import org.apache.directory.groovyldap.DistinguishedName
+
+class DistinguishedNameTests extends GroovyTestCase {
+
+    void testParse() {
+        def dn = DistinguishedName.valueOf("uid=john,ou=People,dc=example,dc=com")
+        assert dn.size() == 4
+        assert dn.rdn.type == "uid"
+        assert dn.rdn.value == "john"
+        assert dn.toString() == "uid=john,ou=People,dc=example,dc=com"
+        assert !dn.root
+        assert DistinguishedName.valueOf("").root
+        shouldFail(InvalidNameException) {
+            DistinguishedName.valueOf("not a dn")
+        }
+    }
+
+    void testEqualityIgnoresCaseAndSpacing() {
+        def dn1 = DistinguishedName.valueOf("UID=John, OU=People,DC=Example,DC=Com")
+        def dn2 = DistinguishedName.valueOf("uid=john,ou=people,dc=example,dc=com")
+        assert dn1 == dn2
+        assert dn1.hashCode() == dn2.hashCode()
+        assert dn1.normalizedName == "uid=john,ou=people,dc=example,dc=com"
+        assert dn1.compareTo(dn2) == 0
+        assert DistinguishedName.valueOf("uid=jane,dc=example,dc=com") != DistinguishedName.valueOf("uid=john,dc=example,dc=com")
+    }
+
+    void testMultiValuedRdn() {
+        assert DistinguishedName.valueOf("cn=John+sn=Doe,dc=example") == DistinguishedName.valueOf("sn=doe+cn=john,dc=example")
+    }
+
+    void testEscaping() {
+        def dn = DistinguishedName.valueOf("cn=Doe\\, John,dc=example,dc=com")
+        assert dn.size() == 3
+        assert dn.rdn.value == "Doe, John"
+        assert dn.normalizedName == "cn=doe\\, john,dc=example,dc=com"
+
+        def child = DistinguishedName.valueOf("dc=example,dc=com").getChild(new Rdn("cn", "a+b=c"))
+        assert DistinguishedName.valueOf(child.toString()) == child
+    }
+
+    void testParentAndChild() {
+        def base = DistinguishedName.valueOf("dc=example,dc=com")
+        def child = base.getChild("ou=People")
+        assert child.toString() == "ou=People,dc=example,dc=com"
+        assert child.parent == base
+        assert base.isParentOf(child)
+        assert base.isAncestorOf(child.getChild("uid=john"))
+        assert child.getChild("uid=john").isDescendantOf(base)
+        assert !child.isAncestorOf(base)
+        assert !base.isAncestorOf(base)
+        assert DistinguishedName.ROOT.getChild("dc=com").parent == DistinguishedName.ROOT
+        assert DistinguishedName.ROOT.parent == null
+    }
+
+    void testOrderPutsParentBeforeChildren() {
+        def names = ["uid=b,ou=x,dc=com", "dc=com", "ou=x,dc=com", "uid=a,ou=x,dc=com"].collect {
+            DistinguishedName.valueOf(it)
+        }
+        assert names.sort()*.toString() == ["dc=com", "ou=x,dc=com", "uid=a,ou=x,dc=com", "uid=b,ou=x,dc=com"]
+    }
+}
@@ -0,0 +1,71 @@
+package grails.plugins.selection.ldap
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig
+import com.unboundid.ldap.listener.InMemoryListenerConfig
+import com.unboundid.util.ssl.KeyStoreKeyManager
+import com.unboundid.util.ssl.SSLUtil
+import com.unboundid.util.ssl.TrustAllTrustManager
+
+/**
+ * In-process LDAP server for tests, populated with a number of inetOrgPerson entries.
+ */
+class EmbeddedDirectory {
+
+    static final String BASE_DN = "dc=example,dc=com"
+    static final String PEOPLE_DN = "ou=people,dc=example,dc=com"
+
+    InMemoryDirectoryServer server
+
+    /**
+     * InMemoryOperationInterceptors to install, set before start.
+     */
+    List interceptors = []
+
+    void start(int people = 100) {
+        start(people, [InMemoryListenerConfig.createLDAPConfig("default", 0)])
+    }
+
+    /**
+     * Starts with an LDAPS listener and a plain listener that supports StartTLS.
+     * @param keyStore JKS key store with the server certificate, issued to localhost
+     */
+    void startSecure(int people, String keyStore, String password) {
+        def ssl = new SSLUtil(new KeyStoreKeyManager(keyStore, password.toCharArray()), new TrustAllTrustManager())
+        start(people, [
+                InMemoryListenerConfig.createLDAPConfig("default", null, 0, ssl.createSSLSocketFactory()),
+                InMemoryListenerConfig.createLDAPSConfig("ldaps", null, 0, ssl.createSSLServerSocketFactory(), null)])
+    }
+
+    private void start(int people, List listeners) {
+        def config = new InMemoryDirectoryServerConfig(BASE_DN)
+        config.addAdditionalBindCredentials("cn=admin", "secret")
+        config.setListenerConfigs(listeners)
+        interceptors.each { config.addInMemoryOperationInterceptor(it) }
+        server = new InMemoryDirectoryServer(config)
+        server.add(ldif("dn: $BASE_DN", "objectClass: top", "objectClass: domain", "dc: example"))
+        server.add(ldif("dn: $PEOPLE_DN", "objectClass: top", "objectClass: organizationalUnit", "ou: people"))
+        for (int i = 0; i < people; i++) {
+            server.add(ldif("dn: uid=user$i,$PEOPLE_DN", "objectClass: top", "objectClass: person",
+                    "objectClass: organizationalPerson", "objectClass: inetOrgPerson",
+                    "uid: user$i", "cn: User $i", "sn: Surname $i", "userPassword: password$i"))
+        }
+        server.startListening()
+    }
+
+    String getUrl() {
+        "ldap://localhost:${server.getListenPort("default")}/"
+    }
+
+    String getLdapsUrl() {
+        "ldaps://localhost:${server.getListenPort("ldaps")}/"
+    }
+
+    void stop() {
+        server?.shutDown(true)
+    }
+
+    private static String[] ldif(Object... lines) {
+        lines.collect { it.toString() } as String[]
+    }
+}
@@ -0,0 +1,72 @@
+package grails.plugins.selection.ldap
+
+import org.apache.directory.groovyldap.EntrySnapshot
+import org.apache.directory.groovyldap.LdapEntry
+
+class EntrySnapshotTests extends GroovyTestCase {
+
+    void testWriteAndRead() {
+        def file = File.createTempFile("snapshot", ".bin")
+        try {
+            def person = new LdapEntry("cn=John Doe,dc=example,dc=com")
+            person.cn = "John Doe"
+            person.objectclass = ["top", "person"]
+            person.jpegphoto = [1, 2, 3] as byte[]
+            def group = new LdapEntry("cn=staff,dc=example,dc=com")
+            group.member = ["cn=John Doe,dc=example,dc=com"]
+
+            EntrySnapshot.write(file, [all: [person, group], groups: [group]])
+
+            def snapshot = EntrySnapshot.open(file)
+            assert snapshot.keys == ["all", "groups"] as Set
+            def all = snapshot.getEntries("all")
+            assert all.size() == 2
+            assert all[0].dn == "cn=John Doe,dc=example,dc=com"
+            assert all[0].cn == "John Doe"
+            assert all[0].objectclass == ["top", "person"]
+            assert all[0].jpegphoto == [1, 2, 3] as byte[]
+            assert all[1].member == ["cn=John Doe,dc=example,dc=com"]
+            assert snapshot.getEntries("groups")[0].getDistinguishedName() == group.getDistinguishedName()
+            assert snapshot.getEntries("missing") == null
+        } finally {
+            file.delete()
+        }
+    }
+
+    void testOnlyOwnerCanReadTheFile() {
+        if (File.separatorChar != '/' as char) {
+            return // POSIX permissions only
+        }
+        def file = File.createTempFile("snapshot", ".bin")
+        try {
+            "chmod 644 $file".execute().waitFor()
+            def person = new LdapEntry("cn=John Doe,dc=example,dc=com")
+            person.userpassword = "secret".bytes
+            EntrySnapshot.write(file, [all: [person]])
+            assert ["ls", "-l", file.path].execute().text.startsWith("-rw-------")
+        } finally {
+            file.delete()
+        }
+    }
+
+    void testNullValuesAreSkipped() {
+        def file = File.createTempFile("snapshot", ".bin")
+        try {
+            def person = new LdapEntry("cn=John Doe,dc=example,dc=com")
+            person.cn = "John Doe"
+            person.mail = null
+            person.objectclass = ["top", null, "person"]
+
+            EntrySnapshot.write(file, [all: [person]])
+
+            def entry = EntrySnapshot.open(file).getEntries("all")[0]
+            assert entry.cn == "John Doe"
+            assert !entry.containsKey("mail")
+            assert entry.objectclass == ["top", "person"]
+            assert !new File(file.path + ".tmp").exists()
+            assert !new File(file.path + ".entries.tmp").exists()
+        } finally {
+            file.delete()
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package grails.plugins.selection.ldap
+
+import org.apache.directory.groovyldap.LDAP
+
+class LdapAuthenticationTests extends GroovyTestCase {
+
+    def directory
+    def ldap
+
+    protected void setUp() {
+        super.setUp()
+        directory = new EmbeddedDirectory()
+        directory.start(10)
+        ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        ldap.authenticator.userSearchBase = EmbeddedDirectory.PEOPLE_DN
+    }
+
+    protected void tearDown() {
+        ldap.authenticator.close()
+        directory.stop()
+        super.tearDown()
+    }
+
+    void testAuthenticateByName() {
+        assert ldap.authenticate("user1", "password1")
+        assert !ldap.authenticate("user1", "password2")
+        assert !ldap.authenticate("nobody", "password1")
+    }
+
+    void testBindConnectionIsReused() {
+        5.times { assert ldap.authenticate("user2", "password2") }
+        assert !ldap.authenticate("user2", "wrong")
+        assert ldap.authenticator.openedConnections == 1
+        assert ldap.authenticator.idleConnections == 1
+    }
+
+    void testAuthenticateByDn() {
+        assert ldap.authenticate("uid=user3,${EmbeddedDirectory.PEOPLE_DN}", "password3")
+        assert !ldap.authenticate("uid=user3,${EmbeddedDirectory.PEOPLE_DN}", "wrong")
+    }
+
+    void testEmptyPasswordIsRejected() {
+        assert !ldap.authenticate("user1", "")
+        assert !ldap.authenticate("user1", null)
+    }
+}
@@ -0,0 +1,82 @@
+package grails.plugins.selection.ldap
+
+import org.apache.directory.groovyldap.LDAP
+import org.apache.directory.groovyldap.Search
+import org.apache.directory.groovyldap.SyncState
+
+class LdapChangeTrackingTests extends GroovyTestCase {
+
+    def directory
+
+    protected void setUp() {
+        super.setUp()
+        directory = new EmbeddedDirectory()
+        directory.start(20)
+    }
+
+    protected void tearDown() {
+        directory.stop()
+        super.tearDown()
+    }
+
+    void testChangesAndDeletions() {
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        ldap.pageSize = 7 // Several pages
+        def search = new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(objectClass=inetOrgPerson)")
+        def state = new SyncState()
+        state.deletionCheckEvery = 1
+
+        def changed = []
+        def deleted = []
+        ldap.eachChange(search, state, { changed << it.uid }, { deleted << it })
+        assert changed.size() == 20
+        assert deleted.empty
+        assert state.watermark
+
+        // Nothing changed, the entries at the watermark are not passed again
+        changed.clear()
+        ldap.eachChange(search, state, { changed << it.uid }, { deleted << it })
+        assert changed.empty
+
+        Thread.sleep(1100)
+        ldap.modify("uid=user3,$EmbeddedDirectory.PEOPLE_DN", "REPLACE", [description: "changed"])
+        ldap.delete("uid=user5,$EmbeddedDirectory.PEOPLE_DN")
+
+        def file = File.createTempFile("syncstate", ".ser")
+        try {
+            state.save(file)
+            state = SyncState.load(file)
+        } finally {
+            file.delete()
+        }
+
+        changed.clear()
+        ldap.eachChange(search, state, { changed << it.uid }, { deleted << it })
+        assert changed == ["user3"]
+        assert deleted == ["uid=user5,ou=people,dc=example,dc=com"]
+    }
+
+    void testChangeWithinTheBoundarySecond() {
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        def search = new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(objectClass=inetOrgPerson)")
+        def state = new SyncState()
+        def changed = []
+        ldap.eachChange(search, state) { changed << it.uid }
+
+        Thread.sleep(1100)
+        ldap.modify("uid=user3,$EmbeddedDirectory.PEOPLE_DN", "REPLACE", [description: "first"])
+        changed.clear()
+        ldap.eachChange(search, state) { changed << it.description }
+        assert changed == ["first"]
+
+        // Usually within the same second, so modifyTimestamp does not change
+        ldap.modify("uid=user3,$EmbeddedDirectory.PEOPLE_DN", "REPLACE", [description: "second"])
+        changed.clear()
+        ldap.eachChange(search, state) { changed << it.description }
+        assert changed == ["second"]
+
+        changed.clear()
+        ldap.eachChange(search, state) { changed << it.description }
+        assert changed.empty
+    }
+}
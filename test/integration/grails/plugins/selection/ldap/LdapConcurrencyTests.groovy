@@ -0,0 +1,205 @@
+package grails.plugins.selection.ldap
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import javax.naming.NamingException
+
+import org.apache.directory.groovyldap.LDAP
+import org.apache.directory.groovyldap.LdapEntry
+import org.apache.directory.groovyldap.NegativeCache
+import org.apache.directory.groovyldap.QueryProfiler
+import org.apache.directory.groovyldap.Search
+import org.apache.directory.groovyldap.SearchCoalescer
+
+/**
+ * Uses a single LDAP object from many threads against an embedded directory.
+ */
+class LdapConcurrencyTests extends GroovyTestCase {
+
+    static final int THREADS = 32
+    static final int ITERATIONS = 50
+
+    def directory
+
+    protected void setUp() {
+        super.setUp()
+        directory = new EmbeddedDirectory()
+        directory.start(THREADS)
+    }
+
+    protected void tearDown() {
+        directory.stop()
+        super.tearDown()
+    }
+
+    void testSharedInstance() {
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        def search = new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(objectClass=inetOrgPerson)")
+        def pool = Executors.newFixedThreadPool(THREADS)
+        try {
+            def futures = (0..<THREADS).collect { n ->
+                pool.submit({
+                    def uid = "user$n"
+                    def moved = "moved$n"
+                    ITERATIONS.times {
+                        assert ldap.search(search).size() == THREADS
+                        assert ldap.searchUnique(new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(cn=User $n)")) != null
+
+                        // Alternate between keeping and deleting the old RDN, the option must not leak
+                        // into operations of other threads
+                        ldap.modifyDn("uid=$uid,${EmbeddedDirectory.PEOPLE_DN}", "uid=$moved", false, EmbeddedDirectory.PEOPLE_DN)
+                        assert ldap.read("uid=$moved,${EmbeddedDirectory.PEOPLE_DN}").uid.size() == 2
+                        ldap.modifyDn("uid=$moved,${EmbeddedDirectory.PEOPLE_DN}", "uid=$uid", true, EmbeddedDirectory.PEOPLE_DN)
+                        assert ldap.read("uid=$uid,${EmbeddedDirectory.PEOPLE_DN}").uid == uid
+                        assert !ldap.exists("uid=$moved,${EmbeddedDirectory.PEOPLE_DN}")
+                    }
+                    true
+                } as Callable)
+            }
+            futures.each { assert it.get(2, TimeUnit.MINUTES) }
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    void testRenameClearsNegativeCache() {
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        ldap.negativeCache = new NegativeCache()
+        def target = "uid=renamed,${EmbeddedDirectory.PEOPLE_DN}"
+        assert !ldap.exists(target)
+        ldap.modifyDn("uid=user0,${EmbeddedDirectory.PEOPLE_DN}", "uid=renamed", true, EmbeddedDirectory.PEOPLE_DN)
+        assert ldap.exists(target)
+    }
+
+    void testMissIsNotRememberedAfterConcurrentAdd() {
+        def cache = new NegativeCache()
+        def url = directory.url
+        def dn = "uid=new,${EmbeddedDirectory.PEOPLE_DN}"
+        // The lookup started before the entry was added and found nothing
+        def generation = cache.generation()
+        cache.entryAdded(url, dn)
+        cache.entryMissing(url, dn, generation)
+        assert !cache.isMissingEntry(url, dn)
+
+        cache.entryMissing(url, dn, cache.generation())
+        assert cache.isMissingEntry(url, dn)
+    }
+
+    void testCoalescedSearches() {
+        def ldap = LDAP.newInstance(directory.url)
+        ldap.searchCoalescer = new SearchCoalescer()
+        def search = new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(objectClass=inetOrgPerson)")
+        def pool = Executors.newFixedThreadPool(THREADS)
+        try {
+            def futures = (0..<THREADS * ITERATIONS).collect {
+                pool.submit({ ldap.search(search) } as Callable)
+            }
+            def results = futures.collect { it.get(2, TimeUnit.MINUTES) }
+            results.each { assert it.size() == THREADS }
+
+            // Callers sharing a search get their own copies
+            results[0][0].cn = "changed"
+            assert results[1][0].cn != "changed"
+            results[0].clear()
+            assert results[1].size() == THREADS
+        } finally {
+            pool.shutdownNow()
+        }
+        assert ldap.searchCoalescer.requests == THREADS * ITERATIONS
+    }
+
+    void testCoalescerSharesRunningSearch() {
+        def coalescer = new SearchCoalescer()
+        def release = new CountDownLatch(1)
+        def entry = new LdapEntry("uid=user0,${EmbeddedDirectory.PEOPLE_DN}")
+        entry.mail = ["a@example.com"]
+        def search = { release.await(); [entry] } as Callable
+        def pool = Executors.newFixedThreadPool(2)
+        try {
+            def first = pool.submit({ coalescer.execute("key", search) } as Callable)
+            while (coalescer.requests < 1) {
+                Thread.sleep(10)
+            }
+            def second = pool.submit({ coalescer.execute("key", search) } as Callable)
+            while (coalescer.shared < 1) {
+                Thread.sleep(10)
+            }
+            release.countDown()
+            def a = first.get(1, TimeUnit.MINUTES)
+            def b = second.get(1, TimeUnit.MINUTES)
+            assert a == b
+            a[0].mail << "b@example.com"
+            assert b[0].mail == ["a@example.com"]
+            assert entry.mail == ["a@example.com"]
+        } finally {
+            pool.shutdownNow()
+        }
+        assert coalescer.requests == 2
+        assert coalescer.shared == 1
+    }
+
+    void testProfilerFromManyThreads() {
+        def ldap = LDAP.newInstance(directory.url)
+        ldap.profiler = new QueryProfiler(slowThresholdMillis: 0)
+        def pool = Executors.newFixedThreadPool(THREADS)
+        try {
+            def futures = (0..<THREADS).collect { n ->
+                pool.submit({ ldap.search(new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(uid=user$n)")) } as Callable)
+            }
+            futures.each { assert it.get(2, TimeUnit.MINUTES).size() == 1 }
+        } finally {
+            pool.shutdownNow()
+        }
+        def report = ldap.profiler.report
+        assert report.size() == 1
+        assert report[0].filter == "(uid=?)"
+        assert report[0].count == THREADS
+        assert report[0].entries == THREADS
+        assert ldap.profiler.slowOperations.size() == THREADS
+    }
+
+    void testProfilerErrorsAndFilterValues() {
+        def ldap = LDAP.newInstance(directory.url)
+        ldap.profiler = new QueryProfiler(slowThresholdMillis: 0)
+        shouldFail(NamingException) {
+            ldap.search(new Search(base: "ou=missing,${EmbeddedDirectory.PEOPLE_DN}", filter: "(uid=user1)"))
+        }
+        def report = ldap.profiler.report
+        assert report[0].errors == 1
+        assert report[0].count == 0
+        def op = ldap.profiler.slowOperations[0]
+        assert op.filter == "(uid=?)"
+        assert op.error
+        assert !op.containsKey("filterValues")
+
+        ldap.profiler.logFilterValues = true
+        ldap.search(new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(uid=user1)"))
+        assert ldap.profiler.slowOperations[0].filterValues == "(uid=user1)"
+    }
+
+    void testProfilerRowsAreBounded() {
+        def profiler = new QueryProfiler(maxShapes: 3)
+        10.times { n -> profiler.start(new Search(base: "ou=unit$n", filter: "(uid=user$n)")).finished(1) }
+        def report = profiler.report
+        assert report.size() == 4
+        assert report.find { it.filter == "(other)" }.count == 7
+        assert report.sum { it.count } == 10
+    }
+
+    void testNestedSearchKeepsOuterMapping() {
+        def ldap = LDAP.newInstance(directory.url)
+        ldap.profiler = new QueryProfiler()
+        def search = new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(objectClass=inetOrgPerson)")
+        ldap.eachEntry(search) { }
+        def bytes = ldap.profiler.report[0].bytes
+        assert bytes > 0
+
+        ldap.profiler.reset()
+        ldap.eachEntry(search) { ldap.search(new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(uid=${it.uid})")) }
+        def outer = ldap.profiler.report.find { it.filter == "(objectclass=?)" }
+        assert outer.bytes == bytes
+    }
+}
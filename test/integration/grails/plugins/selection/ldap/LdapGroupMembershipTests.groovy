@@ -0,0 +1,54 @@
+package grails.plugins.selection.ldap
+
+import org.apache.directory.groovyldap.DistinguishedName
+import org.apache.directory.groovyldap.GroupMembershipResolver
+import org.apache.directory.groovyldap.LDAP
+
+class LdapGroupMembershipTests extends GroovyTestCase {
+
+    static final String GROUPS_DN = "ou=groups,${EmbeddedDirectory.BASE_DN}"
+
+    def directory
+    def resolver
+
+    protected void setUp() {
+        super.setUp()
+        directory = new EmbeddedDirectory()
+        directory.start(3)
+        directory.server.add("dn: $GROUPS_DN", "objectClass: organizationalUnit", "ou: groups")
+        group("staff", "uid=user0,${EmbeddedDirectory.PEOPLE_DN}")
+        group("developers", "uid=user1,${EmbeddedDirectory.PEOPLE_DN}", "cn=staff,$GROUPS_DN")
+        group("admins", "cn=developers,$GROUPS_DN")
+        group("all", "cn=admins,$GROUPS_DN", "cn=staff,$GROUPS_DN")
+        // Nested groups that contain each other must not loop
+        group("a", "cn=b,$GROUPS_DN", "uid=user2,${EmbeddedDirectory.PEOPLE_DN}")
+        group("b", "cn=a,$GROUPS_DN")
+
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        resolver = new GroupMembershipResolver(ldap)
+        resolver.groupSearchBase = GROUPS_DN
+    }
+
+    protected void tearDown() {
+        directory.stop()
+        super.tearDown()
+    }
+
+    private void group(String name, String... members) {
+        def lines = ["dn: cn=$name,$GROUPS_DN", "objectClass: groupOfNames", "cn: $name"]
+        members.each { lines << "member: $it" }
+        directory.server.add(lines.collect { it.toString() } as String[])
+    }
+
+    void testNestedMembership() {
+        def user1 = "uid=user1,${EmbeddedDirectory.PEOPLE_DN}"
+        assert resolver.groupsOf(user1) == ["developers", "admins", "all"].collect { DistinguishedName.valueOf("cn=$it,$GROUPS_DN") } as Set
+        assert resolver.isMember(user1, "CN=All,$GROUPS_DN")
+        assert !resolver.isMember(user1, "cn=staff,$GROUPS_DN")
+        assert resolver.groupsOf("uid=user0,${EmbeddedDirectory.PEOPLE_DN}").size() == 4
+    }
+
+    void testCyclicGroups() {
+        assert resolver.groupsOf("uid=user2,${EmbeddedDirectory.PEOPLE_DN}").size() == 2
+    }
+}
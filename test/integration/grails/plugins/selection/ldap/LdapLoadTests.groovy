@@ -0,0 +1,55 @@
+package grails.plugins.selection.ldap
+
+import java.util.logging.Logger
+
+/**
+ * Runs the load harness briefly. Longer runs are configured with system properties: ldap.load.people,
+ * ldap.load.clients, ldap.load.seconds, ldap.load.latency (milliseconds added per request) and
+ * ldap.load.uris (a file of selection URIs to replay).
+ */
+class LdapLoadTests extends GroovyTestCase {
+
+    private static final Logger LOG = Logger.getLogger(LdapLoadTests.name)
+
+    def grailsApplication
+    def selectionService
+
+    /** The LDAP selection handler, its profiler is shared by all selections. */
+    def ldapSelection
+    long slowQueryMillis
+
+    protected void setUp() {
+        super.setUp()
+        def handlerClass = grailsApplication.classLoader.loadClass("LdapSelection")
+        ldapSelection = grailsApplication.mainContext.getBeansOfType(handlerClass).values().iterator().next()
+        slowQueryMillis = ldapSelection.slowQueryMillis
+        // Injected latency would otherwise log every request as slow
+        ldapSelection.slowQueryMillis = Long.MAX_VALUE
+    }
+
+    protected void tearDown() {
+        ldapSelection.slowQueryMillis = slowQueryMillis
+        // Drop the statistics of the load, they describe an embedded server that no longer runs
+        ldapSelection.resetStatistics()
+        super.tearDown()
+    }
+
+    void testSelectionLoad() {
+        def harness = new LoadHarness(
+                people: Integer.getInteger("ldap.load.people", 200),
+                clients: Integer.getInteger("ldap.load.clients", 8),
+                durationSeconds: Integer.getInteger("ldap.load.seconds", 3),
+                warmupSeconds: 1,
+                latencyMillis: Long.getLong("ldap.load.latency", 0L),
+                selector: { URI uri -> selectionService.select(uri.toString()) })
+        def uris = System.getProperty("ldap.load.uris")
+        if (uris) {
+            harness.replay(new File(uris))
+        }
+        def report = harness.run()
+        LOG.info "Load report: $report"
+        assert report.operations > 0
+        assert report.errors == 0
+        assert report.connections > 0
+    }
+}
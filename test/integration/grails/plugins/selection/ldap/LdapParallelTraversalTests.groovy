@@ -0,0 +1,65 @@
+package grails.plugins.selection.ldap
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor
+
+import org.apache.directory.groovyldap.LDAP
+import org.apache.directory.groovyldap.Search
+
+class LdapParallelTraversalTests extends GroovyTestCase {
+
+    def directory
+    def searches = new AtomicInteger()
+
+    protected void setUp() {
+        super.setUp()
+        directory = new EmbeddedDirectory(interceptors: [new InMemoryOperationInterceptor() {
+            @Override
+            void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                searches.incrementAndGet()
+            }
+        }])
+    }
+
+    protected void tearDown() {
+        directory.stop()
+        super.tearDown()
+    }
+
+    void testParallelTraversal() {
+        directory.start(20)
+        assertSameEntries(LDAP.newInstance(directory.url), EmbeddedDirectory.BASE_DN)
+    }
+
+    void testBaseInUrl() {
+        directory.start(20)
+        assertSameEntries(LDAP.newInstance("${directory.url}$EmbeddedDirectory.BASE_DN"), "")
+        assertSameEntries(LDAP.newInstance("${directory.url}$EmbeddedDirectory.BASE_DN"), "ou=people")
+    }
+
+    void testFlatLevelIsNotSplit() {
+        directory.start(LDAP.DEFAULT_MAX_SPLIT_CHILDREN * 3)
+        def ldap = LDAP.newInstance(directory.url)
+        ldap.pageSize = 40 // Several pages
+        searches.set(0)
+        def parallel = Collections.synchronizedSet([] as Set)
+        ldap.eachEntryParallel(new Search(base: EmbeddedDirectory.BASE_DN, filter: "(objectClass=*)"), 4) {
+            parallel << it.dn
+        }
+        assert parallel.size() == LDAP.DEFAULT_MAX_SPLIT_CHILDREN * 3 + 2
+        // Not a BASE and a ONE level search per entry
+        assert searches.get() < 20
+    }
+
+    private void assertSameEntries(LDAP ldap, String base) {
+        def search = new Search(base: base, filter: "(objectClass=*)")
+        def sequential = [] as Set
+        ldap.eachEntry(search) { sequential << it.dn }
+        def parallel = Collections.synchronizedSet([] as Set)
+        ldap.eachEntryParallel(search, 4) { parallel << it.dn }
+        assert sequential.size() > 20
+        assert parallel == sequential
+    }
+}
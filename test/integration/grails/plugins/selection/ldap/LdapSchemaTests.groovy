@@ -0,0 +1,95 @@
+package grails.plugins.selection.ldap
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor
+import com.unboundid.ldap.sdk.LDAPException
+import com.unboundid.ldap.sdk.ResultCode
+
+import org.apache.directory.groovyldap.LDAP
+import org.apache.directory.groovyldap.NegativeCache
+import org.apache.directory.groovyldap.Search
+import org.apache.directory.groovyldap.SearchScope
+
+class LdapSchemaTests extends GroovyTestCase {
+
+    def directory
+
+    protected void setUp() {
+        super.setUp()
+        directory = new EmbeddedDirectory()
+        directory.start(5)
+    }
+
+    protected void tearDown() {
+        directory.stop()
+        super.tearDown()
+    }
+
+    void testTypedValues() {
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        ldap.schemaAware = true
+        // modifyTimestamp is operational, it is only returned when asked for
+        def entry = ldap.searchUnique(new Search(base: "uid=user1,$EmbeddedDirectory.PEOPLE_DN", scope: SearchScope.BASE,
+                filter: "(objectClass=*)", attrs: ["*", "modifyTimestamp"] as String[]))
+        assert entry.modifytimestamp instanceof Date
+        assert entry.userpassword instanceof byte[]
+        assert entry.uid == "user1"
+    }
+
+    void testSchemaAwarenessTurnedOff() {
+        def search = new Search(base: "uid=user1,$EmbeddedDirectory.PEOPLE_DN", scope: SearchScope.BASE,
+                filter: "(objectClass=*)", attrs: ["*", "modifyTimestamp"] as String[])
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        ldap.schemaAware = true
+        assert ldap.searchUnique(search).modifytimestamp instanceof Date
+        ldap.schemaAware = false
+        assert ldap.searchUnique(search).modifytimestamp instanceof String
+
+        // Reading the schema does not turn conversion on
+        def other = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        assert other.schema != null
+        assert other.searchUnique(search).modifytimestamp instanceof String
+    }
+
+    void testWithoutSchema() {
+        def refusing = new EmbeddedDirectory(interceptors: [new InMemoryOperationInterceptor() {
+            @Override
+            void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                if (request.request.baseDN.equalsIgnoreCase("cn=schema")) {
+                    throw new LDAPException(ResultCode.INSUFFICIENT_ACCESS_RIGHTS, "No schema for you")
+                }
+            }
+        }])
+        refusing.start(5)
+        try {
+            def ldap = LDAP.newInstance(refusing.url, "cn=admin", "secret")
+            ldap.schemaAware = true
+            def entry = ldap.searchUnique(new Search(base: "uid=user1,$EmbeddedDirectory.PEOPLE_DN", scope: SearchScope.BASE,
+                    filter: "(objectClass=*)", attrs: ["*", "modifyTimestamp"] as String[]))
+            assert entry.uid == "user1"
+            assert entry.modifytimestamp instanceof String
+            assert ldap.read("uid=user2,$EmbeddedDirectory.PEOPLE_DN").uid == "user2"
+        } finally {
+            refusing.stop()
+        }
+    }
+
+    void testSelectedAttributesOnly() {
+        def ldap = LDAP.newInstance(directory.url)
+        def search = new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(uid=user1)")
+        search.attrs = ["sn"] as String[]
+        def result = ldap.search(search)
+        assert result.size() == 1
+        assert result[0].sn == "Surname 1"
+        assert result[0].cn == null
+    }
+
+    void testNegativeCacheIgnoresCase() {
+        def ldap = LDAP.newInstance(directory.url)
+        ldap.schemaAware = true
+        ldap.negativeCache = new NegativeCache(60000L, 100)
+        assert ldap.searchUnique(base: EmbeddedDirectory.PEOPLE_DN, filter: "(uid=Nobody)") == null
+        assert ldap.searchUnique(base: EmbeddedDirectory.PEOPLE_DN, filter: "(uid=NOBODY)") == null
+        assert ldap.negativeCache.statistics.hits == 1
+    }
+}
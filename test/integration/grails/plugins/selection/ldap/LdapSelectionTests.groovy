@@ -1,5 +1,16 @@
 package grails.plugins.selection.ldap
 
+import java.util.concurrent.atomic.AtomicInteger
+
+import javax.naming.NamingException
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor
+
+import org.apache.directory.groovyldap.LDAP
+import org.apache.directory.groovyldap.NegativeCache
+import org.apache.directory.groovyldap.Search
+
 class LdapSelectionTests extends GroovyTestCase {
 
     def grailsApplication
@@ -9,11 +20,26 @@ class LdapSelectionTests extends GroovyTestCase {
     def TEST_DOMAIN = "example"
     def TEST_TLD = "com"
 
+    def directory
+    def returnedEntries = new AtomicInteger()
+
     protected void setUp() {
         super.setUp()
         TEST_HOST = grailsApplication.config.ldapSelection.test.host
         TEST_DOMAIN= grailsApplication.config.ldapSelection.test.domain
         TEST_TLD = grailsApplication.config.ldapSelection.test.tld
+        directory = new EmbeddedDirectory(interceptors: [new InMemoryOperationInterceptor() {
+            @Override
+            void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+                returnedEntries.incrementAndGet()
+            }
+        }])
+        directory.start(20)
+    }
+
+    protected void tearDown() {
+        directory.stop()
+        super.tearDown()
     }
 
     void testLdapSearchAll() {
@@ -29,4 +55,27 @@ class LdapSelectionTests extends GroovyTestCase {
             println "$entry"
         }
     }
+
+    void testNegativeCache() {
+        def ldap = LDAP.newInstance("ldap://$TEST_HOST:389/")
+        ldap.negativeCache = new NegativeCache()
+        def dn = "cn=nobody-${System.currentTimeMillis()},dc=$TEST_DOMAIN,dc=$TEST_TLD"
+        assert !ldap.exists(dn)
+        assert !ldap.exists(dn.toUpperCase())
+        assert ldap.negativeCache.statistics.hits == 1
+    }
+
+    void testLdapSearchMax() {
+        def result = selectionService.select("${directory.url}$EmbeddedDirectory.BASE_DN?max=2")
+        assert result.size() == 2
+    }
+
+    void testSearchUniqueStopsAtSecondMatch() {
+        def ldap = LDAP.newInstance(directory.url)
+        returnedEntries.set(0)
+        shouldFail(NamingException) {
+            ldap.searchUnique(new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(objectClass=inetOrgPerson)"))
+        }
+        assert returnedEntries.get() == 2
+    }
 }
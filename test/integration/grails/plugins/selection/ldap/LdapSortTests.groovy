@@ -0,0 +1,58 @@
+package grails.plugins.selection.ldap
+
+import org.apache.directory.groovyldap.ExternalSorter
+import org.apache.directory.groovyldap.LDAP
+import org.apache.directory.groovyldap.LdapEntry
+import org.apache.directory.groovyldap.Search
+
+class LdapSortTests extends GroovyTestCase {
+
+    def directory
+
+    protected void setUp() {
+        super.setUp()
+        directory = new EmbeddedDirectory()
+        directory.start(25)
+    }
+
+    protected void tearDown() {
+        directory.stop()
+        super.tearDown()
+    }
+
+    void testSortWithSpill() {
+        def ldap = LDAP.newInstance(directory.url)
+        ldap.sortBufferSize = 4 // Forces several sorted runs on disk
+        def search = new Search(base: EmbeddedDirectory.PEOPLE_DN, filter: "(objectClass=inetOrgPerson)")
+        def names = []
+        ldap.eachEntrySorted(search, ["sn"]) { names << it.sn }
+        assert names.size() == 25
+        assert names == names.sort(false, String.CASE_INSENSITIVE_ORDER)
+    }
+
+    void testMultiPassMerge() {
+        def defaultLocale = Locale.default
+        Locale.default = new Locale("tr")
+        def dir = File.createTempFile("ldapsort", "")
+        dir.delete()
+        dir.mkdir()
+        def sorter = new ExternalSorter(["UID"], true, 2, dir)
+        try {
+            sorter.maxFanIn = 3
+            def uids = (0..<20).collect { "user${(it * 7) % 20}" }
+            (uids + uids[0..4]).each { uid ->
+                def entry = new LdapEntry("uid=$uid,${EmbeddedDirectory.PEOPLE_DN}")
+                entry.uid = uid
+                sorter.add(entry)
+            }
+            def sorted = []
+            sorter.each { sorted << it.uid }
+            assert sorted == uids.sort(false)
+        } finally {
+            sorter.close()
+            assert dir.listFiles().length == 0
+            Locale.default = defaultLocale
+            dir.deleteDir()
+        }
+    }
+}
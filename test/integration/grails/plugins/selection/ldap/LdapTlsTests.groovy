@@ -0,0 +1,134 @@
+package grails.plugins.selection.ldap
+
+import java.util.logging.Logger
+
+import javax.naming.ConfigurationException
+import javax.naming.ldap.InitialLdapContext
+
+import org.apache.directory.groovyldap.LDAP
+import org.apache.directory.groovyldap.TlsConfiguration
+
+/**
+ * Compares reads over TLS with and without connection reuse. The server certificate is a self-signed
+ * certificate for localhost, generated with keytool, unless a key store is given with -Dldap.test.keystore
+ * and -Dldap.test.keystore.password.
+ */
+class LdapTlsTests extends GroovyTestCase {
+
+    static final int READS = 200
+
+    private static final Logger LOG = Logger.getLogger(LdapTlsTests.name)
+
+    def directory
+    String keyStore = System.getProperty("ldap.test.keystore")
+    String password = System.getProperty("ldap.test.keystore.password", "changeit")
+    File generated
+
+    protected void setUp() {
+        super.setUp()
+        if (!keyStore) {
+            generated = File.createTempFile("ldaptest", ".jks")
+            generated.delete()
+            keyStore = generated.path
+            generateKeyStore(keyStore, password)
+        }
+        directory = new EmbeddedDirectory()
+        directory.startSecure(10, keyStore, password)
+    }
+
+    protected void tearDown() {
+        directory?.stop()
+        generated?.delete()
+        super.tearDown()
+    }
+
+    private static void generateKeyStore(String file, String password) {
+        def keytool = new File(System.getProperty("java.home"), "bin/keytool").path
+        def process = [keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-validity", "2", "-storetype", "JKS", "-keystore", file,
+                "-storepass", password, "-keypass", password].execute()
+        def output = new StringBuffer()
+        process.consumeProcessOutput(output, output)
+        assert process.waitFor() == 0, "keytool failed: $output"
+    }
+
+    void testLdapsHandshakeAmortized() {
+        def tls = new TlsConfiguration(trustStore: keyStore, trustStorePassword: password)
+
+        long start = System.nanoTime()
+        for (int i = 0; i < READS; i++) {
+            def ldap = LDAP.newInstance(directory.ldapsUrl, "cn=admin", "secret")
+            ldap.tls = tls
+            assert ldap.read("uid=user${i % 10},$EmbeddedDirectory.PEOPLE_DN")
+            ldap.close()
+        }
+        long unpooled = System.nanoTime() - start
+
+        def ldap = LDAP.newInstance(directory.ldapsUrl, "cn=admin", "secret")
+        ldap.tls = tls
+        start = System.nanoTime()
+        for (int i = 0; i < READS; i++) {
+            assert ldap.read("uid=user${i % 10},$EmbeddedDirectory.PEOPLE_DN")
+        }
+        long pooled = System.nanoTime() - start
+        def stats = ldap.secureConnectionStatistics
+        ldap.close()
+
+        LOG.info "LDAPS: $READS reads on new connections ${unpooled / 1000000} ms, on pooled connections ${pooled / 1000000} ms, $stats"
+        assert stats.opened == 1
+        assert pooled < unpooled
+    }
+
+    void testLdapsFromAnotherThread() {
+        def ldap = LDAP.newInstance(directory.ldapsUrl, "cn=admin", "secret")
+        ldap.tls = new TlsConfiguration(trustStore: keyStore, trustStorePassword: password)
+        try {
+            assert ldap.read("uid=user1,$EmbeddedDirectory.PEOPLE_DN").uid == "user1"
+            // A context opened directly by JNDI on another thread, as for a reconnect, trusts the server too
+            def result = null
+            def thread = Thread.start {
+                def ctx = new InitialLdapContext(ldap.createEnvironment(), null)
+                try {
+                    result = ctx.getAttributes("uid=user2,$EmbeddedDirectory.PEOPLE_DN").get("uid").get()
+                } finally {
+                    ctx.close()
+                }
+            }
+            thread.join()
+            assert result == "user2"
+        } finally {
+            ldap.close()
+        }
+    }
+
+    void testConflictingConfigurationIsRejected() {
+        def ldap = LDAP.newInstance(directory.ldapsUrl, "cn=admin", "secret")
+        ldap.tls = new TlsConfiguration(trustStore: keyStore, trustStorePassword: password)
+        def same = LDAP.newInstance(directory.ldapsUrl, "cn=admin", "secret")
+        same.tls = new TlsConfiguration(trustStore: keyStore, trustStorePassword: password)
+        def other = LDAP.newInstance(directory.ldapsUrl, "cn=admin", "secret")
+        other.tls = new TlsConfiguration(trustStore: keyStore, trustStorePassword: password, protocol: "TLSv1.2")
+        try {
+            assert ldap.read("uid=user1,$EmbeddedDirectory.PEOPLE_DN").uid == "user1"
+            assert same.read("uid=user2,$EmbeddedDirectory.PEOPLE_DN").uid == "user2"
+            shouldFail(ConfigurationException) {
+                other.read("uid=user3,$EmbeddedDirectory.PEOPLE_DN")
+            }
+        } finally {
+            ldap.close()
+            same.close()
+            other.close()
+        }
+    }
+
+    void testStartTls() {
+        def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+        ldap.tls = new TlsConfiguration(trustStore: keyStore, trustStorePassword: password, startTls: true)
+        assert ldap.secure
+        assert ldap.read("uid=user1,$EmbeddedDirectory.PEOPLE_DN").uid == "user1"
+        assert ldap.authenticate("uid=user2,$EmbeddedDirectory.PEOPLE_DN", "password2")
+        assert !ldap.authenticate("uid=user2,$EmbeddedDirectory.PEOPLE_DN", "wrong")
+        assert ldap.secureConnectionStatistics.opened == 1
+        ldap.close()
+    }
+}
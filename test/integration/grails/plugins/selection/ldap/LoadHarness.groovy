@@ -0,0 +1,211 @@
+package grails.plugins.selection.ldap
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedRequest
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyRequest
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor
+
+import org.apache.directory.groovyldap.LDAP
+
+/**
+ * Generates selection and LDAP traffic against an embedded directory and reports throughput, latency
+ * percentiles, server connections and garbage collection.
+ * <p>
+ * Traffic is either a replay of recorded selection URIs (one per line, host and port are replaced by the
+ * embedded server) or a synthetic mix of reads, searches and modifications of random people entries.
+ * Each client is a thread that runs operations back to back until the duration has passed.
+ */
+class LoadHarness {
+
+    /** Number of people entries in the directory. */
+    int people = 1000
+
+    /** Number of concurrent clients. */
+    int clients = 16
+
+    int durationSeconds = 10
+
+    int warmupSeconds = 2
+
+    /** Delay added by the server to every search, bind and modify request. */
+    long latencyMillis = 0
+
+    /** Relative weights of the synthetic operations. */
+    Map<String, Integer> mix = [read: 60, search: 30, modify: 10]
+
+    /** Recorded selection URIs to replay instead of the synthetic mix. */
+    List<String> uris
+
+    /** Runs a selection URI, for example { uri -> selectionService.select(uri) }. */
+    Closure selector
+
+    private final Set<Long> connections = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>())
+
+    private final InMemoryOperationInterceptor interceptor = new InMemoryOperationInterceptor() {
+        @Override
+        void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) {
+            intercepted(request)
+        }
+
+        @Override
+        void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+            intercepted(request)
+        }
+
+        @Override
+        void processModifyRequest(InMemoryInterceptedModifyRequest request) {
+            intercepted(request)
+        }
+    }
+
+    /**
+     * Reads selection URIs to replay from a file, one per line. Empty lines and lines starting with # are skipped.
+     */
+    void replay(File file) {
+        uris = file.readLines().findAll { it.trim() && !it.startsWith('#') }*.trim()
+    }
+
+    /**
+     * Starts an embedded directory, runs the load and returns the report.
+     */
+    Map<String, Object> run() {
+        def directory = new EmbeddedDirectory(interceptors: [interceptor])
+        directory.start(people)
+        try {
+            def ldap = LDAP.newInstance(directory.url, "cn=admin", "secret")
+            def operations = operations(ldap, directory.url)
+            if (warmupSeconds > 0) {
+                load(operations, warmupSeconds)
+            }
+            connections.clear()
+            return load(operations, durationSeconds)
+        } finally {
+            directory.stop()
+        }
+    }
+
+    private void intercepted(InMemoryInterceptedRequest request) {
+        connections << request.connectionID
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis)
+        }
+    }
+
+    private List<Closure> operations(LDAP ldap, String url) {
+        if (uris) {
+            def server = new URI(url)
+            def targets = uris.collect { String recorded ->
+                def uri = new URI(recorded)
+                new URI(uri.scheme, uri.userInfo, server.host, server.port, uri.path, uri.query, uri.fragment)
+            }
+            def next = new AtomicInteger()
+            return [{ Random random -> selector.call(targets[(next.getAndIncrement() & Integer.MAX_VALUE) % targets.size()]) }]
+        }
+
+        def read = { Random random ->
+            ldap.read("uid=user${random.nextInt(people)},$EmbeddedDirectory.PEOPLE_DN")
+        }
+        def search = { Random random ->
+            def filter = "(uid=user${random.nextInt(people)})"
+            if (selector) {
+                selector.call(new URI("$url$EmbeddedDirectory.PEOPLE_DN?filter=$filter"))
+            } else {
+                ldap.search(filter, EmbeddedDirectory.PEOPLE_DN, LDAP.SUB)
+            }
+        }
+        def modify = { Random random ->
+            ldap.modify("uid=user${random.nextInt(people)},$EmbeddedDirectory.PEOPLE_DN", "REPLACE", [description: "load ${System.nanoTime()}"])
+        }
+        def byName = [read: read, search: search, modify: modify]
+        // One list entry per unit of weight, so a random pick follows the mix
+        def weighted = []
+        mix.each { name, weight -> weight.times { weighted << byName[name] } }
+        weighted
+    }
+
+    private Map<String, Object> load(List<Closure> operations, int seconds) {
+        def gcBefore = gcTotals()
+        def errors = new AtomicLong()
+        def latencies = Collections.synchronizedList([])
+        def pool = Executors.newFixedThreadPool(clients)
+        def done = new CountDownLatch(clients)
+        long start = System.nanoTime()
+        long end = start + TimeUnit.SECONDS.toNanos(seconds)
+        clients.times { n ->
+            pool.execute {
+                def random = new Random(n)
+                def own = new long[1024]
+                int count = 0
+                try {
+                    while (System.nanoTime() < end) {
+                        def operation = operations[random.nextInt(operations.size())]
+                        long t = System.nanoTime()
+                        try {
+                            operation.call(random)
+                        } catch (Exception e) {
+                            errors.incrementAndGet()
+                        }
+                        if (count == own.length) {
+                            own = Arrays.copyOf(own, count * 2)
+                        }
+                        own[count++] = System.nanoTime() - t
+                    }
+                } finally {
+                    latencies << Arrays.copyOf(own, count)
+                    done.countDown()
+                }
+            }
+        }
+        done.await()
+        pool.shutdown()
+        long elapsed = System.nanoTime() - start
+        def gcAfter = gcTotals()
+
+        long total = latencies.sum { it.length } ?: 0
+        def all = new long[total]
+        int i = 0
+        latencies.each { long[] l ->
+            System.arraycopy(l, 0, all, i, l.length)
+            i += l.length
+        }
+        Arrays.sort(all)
+        def runtime = Runtime.runtime
+        [
+                operations: total,
+                errors: errors.get(),
+                clients: clients,
+                seconds: elapsed / 1e9,
+                throughput: total / (elapsed / 1e9),
+                p50Millis: percentile(all, 0.50),
+                p95Millis: percentile(all, 0.95),
+                p99Millis: percentile(all, 0.99),
+                maxMillis: total ? all[total - 1] / 1e6 : 0,
+                connections: connections.size(),
+                gcCount: gcAfter.count - gcBefore.count,
+                gcMillis: gcAfter.time - gcBefore.time,
+                heapUsedMB: (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)
+        ]
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * fraction) - 1)
+        sorted[Math.max(index, 0)] / 1e6
+    }
+
+    private static Map gcTotals() {
+        def beans = ManagementFactory.garbageCollectorMXBeans
+        [count: beans.sum { Math.max(it.collectionCount, 0) } ?: 0, time: beans.sum { Math.max(it.collectionTime, 0) } ?: 0]
+    }
+}
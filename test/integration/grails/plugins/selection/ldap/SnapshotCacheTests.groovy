@@ -0,0 +1,174 @@
+package grails.plugins.selection.ldap
+
+import java.text.SimpleDateFormat
+
+import org.apache.directory.groovyldap.LdapEntry
+import org.apache.directory.groovyldap.SnapshotCache
+
+/**
+ * Drives the refresh of a SnapshotCache directly with a stub loader.
+ */
+class SnapshotCacheTests extends GroovyTestCase {
+
+    def file
+    def loads
+    def changes
+    def names
+    def duringLoad
+
+    protected void setUp() {
+        super.setUp()
+        file = File.createTempFile("snapshot", ".bin")
+        file.delete()
+        loads = []
+        changes = []
+        names = null
+        duringLoad = null
+    }
+
+    protected void tearDown() {
+        file.delete()
+        super.tearDown()
+    }
+
+    private SnapshotCache createCache() {
+        def all = [person("user1", "one"), person("user2", "two")]
+        new SnapshotCache(file, [
+                load: { String key, String since ->
+                    loads << since
+                    duringLoad?.call()
+                    since == null ? all : changes
+                },
+                names: { String key ->
+                    names ?: (all + changes).collect { it.getDistinguishedName().normalizedName } as Set
+                }] as SnapshotCache.Loader)
+    }
+
+    private static LdapEntry person(String uid, String mail) {
+        def entry = new LdapEntry("uid=$uid,ou=people,dc=example,dc=com")
+        entry.uid = uid
+        entry.mail = mail
+        entry
+    }
+
+    void testIncrementalMerge() {
+        def cache = createCache()
+        cache.put("people", [])
+        cache.refresh(100)
+        assert cache.get("people")*.mail == ["one", "two"]
+
+        changes = [person("user2", "changed"), person("user3", "three")]
+        cache.refresh(100)
+        assert loads[1] != null
+        assert cache.get("people")*.uid == ["user1", "user2", "user3"]
+        assert cache.get("people")*.mail == ["one", "changed", "three"]
+    }
+
+    void testDeletedEntriesAreRemovedOnEveryRefresh() {
+        def cache = createCache()
+        cache.put("people", [])
+        cache.refresh(100)
+        assert cache.get("people")*.uid == ["user1", "user2"]
+
+        names = ["uid=user2,ou=people,dc=example,dc=com"] as Set
+        cache.refresh(100)
+        assert loads[1] != null
+        assert cache.get("people")*.uid == ["user2"]
+    }
+
+    void testRefreshKeepsResultsPutMeanwhile() {
+        def cache = createCache()
+        cache.put("people", [])
+        cache.refresh(100)
+
+        changes = [person("user2", "changed")]
+        duringLoad = { cache.put("people", [person("user9", "nine")]) }
+        cache.refresh(100)
+        assert cache.get("people")*.uid == ["user9"]
+    }
+
+    void testCallersGetCopies() {
+        def cache = createCache()
+        def people = [person("user1", "one"), person("user2", "two")]
+        cache.put("people", people)
+        people[0].mail = "changed"
+
+        def result = cache.get("people")
+        assert result*.mail == ["one", "two"]
+        result[0].mail = "mine"
+        result.sort { it.uid }
+        result.remove(1)
+        assert cache.get("people")*.mail == ["one", "two"]
+    }
+
+    void testFullRefreshCadence() {
+        def cache = createCache()
+        cache.put("people", [])
+        7.times { cache.refresh(3) }
+        assert loads.collect { it == null } == [true, false, false, true, false, false, true]
+    }
+
+    void testClockSkewWindow() {
+        def cache = createCache()
+        cache.put("people", [])
+        def before = System.currentTimeMillis()
+        cache.refresh(100)
+        def after = System.currentTimeMillis()
+        cache.refresh(100)
+
+        def format = new SimpleDateFormat("yyyyMMddHHmmss'Z'")
+        format.timeZone = TimeZone.getTimeZone("UTC")
+        def since = format.parse(loads[1]).time
+        // Changes are asked for from five minutes before the previous refresh started
+        assert since <= before - 300000
+        assert since > after - 300000 - 1000
+    }
+
+    void testLeastRecentlyUsedKeysAreDropped() {
+        def cache = createCache()
+        cache.maxKeys = 2
+        cache.put("a", [])
+        Thread.sleep(5)
+        cache.put("b", [])
+        Thread.sleep(5)
+        cache.get("a")
+        cache.put("c", [])
+        assert cache.get("a") != null
+        assert cache.get("b") == null
+        assert cache.get("c") != null
+    }
+
+    void testUnusedKeysExpire() {
+        def cache = createCache()
+        cache.keyExpiryMillis = 0
+        cache.put("people", [])
+        Thread.sleep(5)
+        cache.refresh(100)
+        assert loads.isEmpty()
+        assert cache.get("people") == null
+    }
+
+    void testSnapshotSurvivesRestart() {
+        def cache = createCache()
+        cache.put("people", [])
+        cache.refresh(100)
+
+        def restarted = createCache()
+        restarted.start(60000, 100)
+        try {
+            assert restarted.get("people")*.uid == ["user1", "user2"]
+        } finally {
+            restarted.stop()
+        }
+    }
+
+    void testInvalidSettingsAreRejected() {
+        def cache = createCache()
+        shouldFail(IllegalArgumentException) {
+            cache.start(60000, 0)
+        }
+        shouldFail(IllegalArgumentException) {
+            cache.start(0, 12)
+        }
+    }
+}